@@ -0,0 +1,87 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.network.LinkQuadTree;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.utils.geometry.CoordUtils;
+
+import java.util.BitSet;
+
+import static org.matsim.prepare.ExtractFacilityShp.CreateMATSimFacilities.IGNORED_LINK_TYPES;
+
+/**
+ * Spatial index over the links that are valid activity locations, i.e. all links whose type is not one of the {@code IGNORED_LINK_TYPES}.
+ * The link types are only checked once when the index is created. The spatial tree is only built when the first nearest link is queried,
+ * so that users that only check validity don't need to pay for it.
+ */
+public final class ActivityLinkIndex {
+
+	private final Network network;
+
+	/**
+	 * Valid links by their id index.
+	 */
+	private final BitSet valid = new BitSet();
+
+	private volatile LinkQuadTree tree;
+
+	public ActivityLinkIndex(Network network) {
+
+		this.network = network;
+
+		for (Link link : network.getLinks().values()) {
+			if (!IGNORED_LINK_TYPES.contains(NetworkUtils.getType(link))) {
+				valid.set(link.getId().index());
+			}
+		}
+	}
+
+	private synchronized LinkQuadTree buildTree() {
+
+		if (tree != null)
+			return tree;
+
+		double[] bbox = NetworkUtils.getBoundingBox(network.getNodes().values());
+		LinkQuadTree t = new LinkQuadTree(bbox[0], bbox[1], bbox[2], bbox[3]);
+
+		for (Link link : network.getLinks().values()) {
+			if (isValid(link))
+				t.put(link);
+		}
+
+		tree = t;
+		return t;
+	}
+
+	/**
+	 * Whether a link is a valid activity location. The link must belong to the network of this index.
+	 */
+	public boolean isValid(Link link) {
+		return valid.get(link.getId().index());
+	}
+
+	/**
+	 * Nearest valid link by the exact distance to the link segment.
+	 */
+	public Link getNearestLink(Coord coord) {
+		LinkQuadTree t = tree;
+		if (t == null)
+			t = buildTree();
+
+		return t.getNearest(coord.getX(), coord.getY());
+	}
+
+	/**
+	 * Project the coordinate onto the nearest valid link. If there are no valid links, the coordinate is returned unchanged.
+	 */
+	public Coord getNearestCoord(Coord coord) {
+		Link link = getNearestLink(coord);
+		if (link == null)
+			return coord;
+
+		return CoordUtils.orthogonalProjectionOnLineSegment(link.getFromNode().getCoord(), link.getToNode().getCoord(), coord);
+	}
+
+}
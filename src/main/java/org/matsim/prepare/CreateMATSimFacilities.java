@@ -7,13 +7,11 @@ import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.TopologyException;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.ShpOptions;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.facilities.*;
@@ -34,12 +32,6 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 
 	private static final Logger log = LogManager.getLogger(CreateMATSimFacilities.class);
 
-	/**
-	 * Filter link types that don't have a facility associated.
-	 */
-	static final Set<String> IGNORED_LINK_TYPES = Set.of("motorway", "trunk",
-			"motorway_link", "trunk_link", "secondary_link", "primary_link");
-
 	@CommandLine.Option(names = "--network", required = true, description = "Path to car network")
 	private Path network;
 
@@ -61,16 +53,15 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 			return 2;
 		}
 
-		Network completeNetwork = NetworkUtils.readNetwork(this.network.toString());
-		TransportModeNetworkFilter filter = new TransportModeNetworkFilter(completeNetwork);
-		Network carOnlyNetwork = NetworkUtils.createNetwork();
-		filter.filter(carOnlyNetwork, Set.of(TransportMode.car));
+		Network carOnlyNetwork = NetworkSnapshot.readCarNetwork(this.network.toString());
 
 		List<SimpleFeature> fts = shp.readFeatures();
 
 		Map<Id<Link>, Holder> data = new ConcurrentHashMap<>();
 
-		fts.parallelStream().forEach(ft -> processFeature(ft, carOnlyNetwork, data));
+		ActivityLinkIndex index = new ActivityLinkIndex(carOnlyNetwork);
+
+		fts.parallelStream().forEach(ft -> processFeature(ft, carOnlyNetwork, index, data));
 
 		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
 
@@ -110,7 +101,7 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 	/**
 	 * Sample points and choose link with the nearest points. Aggregate everything so there is at most one facility per link.
 	 */
-	private void processFeature(SimpleFeature ft, Network network, Map<Id<Link>, Holder> data) {
+	private void processFeature(SimpleFeature ft, Network network, ActivityLinkIndex index, Map<Id<Link>, Holder> data) {
 
 		// Actual id is the last part
 		String[] id = ft.getID().split("\\.");
@@ -120,7 +111,7 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 		List<Id<Link>> links = coords.stream().map(coord -> NetworkUtils.getNearestLinkExactly(network, coord).getId()).toList();
 
 		Map<Id<Link>, Long> map = links.stream()
-				.filter(l -> !IGNORED_LINK_TYPES.contains(NetworkUtils.getType(network.getLinks().get(l))))
+				.filter(l -> index.isValid(network.getLinks().get(l)))
 				.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
 
 		// Everything could be filtered and map empty
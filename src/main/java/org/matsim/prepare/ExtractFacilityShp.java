@@ -29,14 +29,12 @@ import org.locationtech.jts.geom.*;
 import org.locationtech.jts.index.strtree.STRtree;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CrsOptions;
 import org.matsim.application.options.ShpOptions;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.facilities.*;
 import org.matsim.run.RunOpenBerlinScenario;
@@ -433,16 +431,15 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 				return 2;
 			}
 
-			Network completeNetwork = NetworkUtils.readNetwork(this.network.toString());
-			TransportModeNetworkFilter filter = new TransportModeNetworkFilter(completeNetwork);
-			Network carOnlyNetwork = NetworkUtils.createNetwork();
-			filter.filter(carOnlyNetwork, Set.of(TransportMode.car));
+			Network carOnlyNetwork = NetworkSnapshot.readCarNetwork(this.network.toString());
 
 			List<SimpleFeature> fts = shp.readFeatures();
 
 			Map<Id<Link>, Holder> data = new ConcurrentHashMap<>();
 
-			fts.parallelStream().forEach(ft -> processFeature(ft, carOnlyNetwork, data));
+			ActivityLinkIndex index = new ActivityLinkIndex(carOnlyNetwork);
+
+			fts.parallelStream().forEach(ft -> processFeature(ft, carOnlyNetwork, index, data));
 
 			ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
 
@@ -482,7 +479,7 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 		/**
 		 * Sample points and choose link with the nearest points. Aggregate everything so there is at most one facility per link.
 		 */
-		private void processFeature(SimpleFeature ft, Network network, Map<Id<Link>, Holder> data) {
+		private void processFeature(SimpleFeature ft, Network network, ActivityLinkIndex index, Map<Id<Link>, Holder> data) {
 
 			// Actual id is the last part
 			String[] id = ft.getID().split("\\.");
@@ -492,7 +489,7 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 			List<Id<Link>> links = coords.stream().map(coord -> NetworkUtils.getNearestLinkExactly(network, coord).getId()).toList();
 
 			Map<Id<Link>, Long> map = links.stream()
-				.filter(l -> !IGNORED_LINK_TYPES.contains(NetworkUtils.getType(network.getLinks().get(l))))
+				.filter(l -> index.isValid(network.getLinks().get(l)))
 				.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
 
 			// Everything could be filtered and map empty
@@ -1,12 +1,14 @@
 package org.matsim.prepare;
 
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Activity;
@@ -16,7 +18,6 @@ import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.ShpOptions;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
@@ -35,6 +36,7 @@ import org.matsim.run.RunOpenBerlinScenario;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -66,9 +68,19 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 	private ActivityFacilities facilities;
 	private Network network;
 	private CoordinateTransformation ct;
-	private Geometry geometry;
+	private PreparedGeometry geometry;
 	private ThreadLocal<LeastCostPathCalculator> ctxs;
 
+	/**
+	 * Node id indices of all nodes inside the area.
+	 */
+	private BitSet inArea;
+
+	/**
+	 * Whether the route between two nodes passes the area, keyed by the node id indices.
+	 */
+	private RouteCache routes;
+
 	private Set<Id<Person>> toRemove;
 
 	public static void main(String[] args) {
@@ -83,14 +95,26 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 			return 2;
 		}
 
-		Network completeNetwork = NetworkUtils.readNetwork(networkPath.toString());
-		TransportModeNetworkFilter filter = new TransportModeNetworkFilter(completeNetwork);
-		network = NetworkUtils.createNetwork();
-		filter.filter(network, Set.of(TransportMode.car));
+		network = NetworkSnapshot.readCarNetwork(networkPath.toString());
 
-		geometry = shp.getGeometry();
+		geometry = PreparedGeometryFactory.prepare(shp.getGeometry());
 		ct = shp.createTransformation(RunOpenBerlinScenario.CRS);
 
+		// Nodes are tested in parallel, but the bitset is filled afterward because it is not thread-safe
+		inArea = new BitSet();
+		int[] nodes = network.getNodes().values().parallelStream()
+				.filter(n -> geometry.contains(MGC.coord2Point(ct.transform(n.getCoord()))))
+				.mapToInt(n -> n.getId().index())
+				.toArray();
+
+		for (int idx : nodes) {
+			inArea.set(idx);
+		}
+
+		log.info("{} out of {} nodes are inside the area", nodes.length, network.getNodes().size());
+
+		routes = new RouteCache();
+
 		facilities = FacilitiesUtils.createActivityFacilities();
 		new MatsimFacilitiesReader(RunOpenBerlinScenario.CRS, RunOpenBerlinScenario.CRS, facilities)
 				.readFile(facilityPath.toString());
@@ -134,18 +158,12 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 			// If not sure yet, also do the routing
 			for (TripStructureUtils.Trip trip : TripStructureUtils.getTrips(plan)) {
 
-				LeastCostPathCalculator lc = ctxs.get();
-
 				Node from = NetworkUtils.getNearestNode(network, getCoordinate(trip.getOriginActivity()));
 				Node to = NetworkUtils.getNearestNode(network, getCoordinate(trip.getDestinationActivity()));
 
-				LeastCostPathCalculator.Path path = lc.calcLeastCostPath(from, to, 0, null, null);
-
-				for (Node node : path.nodes) {
-					if (geometry.contains(MGC.coord2Point(ct.transform(node.getCoord())))) {
-						keep = true;
-						break outer;
-					}
+				if (passesArea(from, to)) {
+					keep = true;
+					break outer;
 				}
 			}
 		}
@@ -155,6 +173,36 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 		}
 	}
 
+	/**
+	 * Check whether the route between two nodes contains any node inside the area.
+	 */
+	private boolean passesArea(Node from, Node to) {
+
+		// The route always contains both end nodes, no routing is needed if one of them is inside
+		if (inArea.get(from.getId().index()) || inArea.get(to.getId().index()))
+			return true;
+
+		long key = ((long) from.getId().index() << 32) | to.getId().index();
+
+		// Routes are only cached, but not locked while computing, so the same route might be computed twice by different threads
+		byte cached = routes.get(key);
+		if (cached != RouteCache.UNKNOWN)
+			return cached == 1;
+
+		LeastCostPathCalculator.Path path = ctxs.get().calcLeastCostPath(from, to, 0, null, null);
+
+		boolean passes = false;
+		for (Node node : path.nodes) {
+			if (inArea.get(node.getId().index())) {
+				passes = true;
+				break;
+			}
+		}
+
+		routes.put(key, passes);
+		return passes;
+	}
+
 	private Coord getCoordinate(Activity act) {
 		Coord coord;
 		// Determine coord of activity
@@ -176,4 +224,50 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 
 		return factory.createPathCalculator(network, travelDisutility, travelTime);
 	}
+
+	/**
+	 * Route results in primitive maps, which are split into shards with their own lock.
+	 * A shard is cleared when it is full, so that the memory of the cache is bounded.
+	 */
+	private static final class RouteCache {
+
+		static final byte UNKNOWN = -1;
+
+		private static final int SHARDS = 64;
+
+		/**
+		 * Maximum number of entries per shard, about 4M entries in total.
+		 */
+		private static final int SHARD_SIZE = 1 << 16;
+
+		private final Long2ByteOpenHashMap[] shards = new Long2ByteOpenHashMap[SHARDS];
+
+		RouteCache() {
+			for (int i = 0; i < SHARDS; i++) {
+				shards[i] = new Long2ByteOpenHashMap();
+				shards[i].defaultReturnValue(UNKNOWN);
+			}
+		}
+
+		byte get(long key) {
+			Long2ByteOpenHashMap shard = shard(key);
+			synchronized (shard) {
+				return shard.get(key);
+			}
+		}
+
+		void put(long key, boolean passes) {
+			Long2ByteOpenHashMap shard = shard(key);
+			synchronized (shard) {
+				if (shard.size() >= SHARD_SIZE)
+					shard.clear();
+
+				shard.put(key, (byte) (passes ? 1 : 0));
+			}
+		}
+
+		private Long2ByteOpenHashMap shard(long key) {
+			return shards[(int) (HashCommon.mix(key) & (SHARDS - 1))];
+		}
+	}
 }
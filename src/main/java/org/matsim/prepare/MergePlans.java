@@ -2,16 +2,22 @@ package org.matsim.prepare;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.scenario.ScenarioUtils;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.*;
 
 @CommandLine.Command(
 		name = "merge-plans",
@@ -27,6 +33,9 @@ public class MergePlans implements MATSimAppCommand {
 	@CommandLine.Option(names = "--output", description = "Path to output population", required = true)
 	private Path output;
 
+	@CommandLine.Option(names = "--sorted", description = "Inputs are sorted by person id and are merged while reading, without holding any population in memory.", defaultValue = "false")
+	private boolean sorted;
+
 	public static void main(String[] args) {
 		new MergePlans().execute(args);
 	}
@@ -34,17 +43,15 @@ public class MergePlans implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
+		if (sorted) {
+			mergeSorted();
+			return 0;
+		}
+
 		Population population = PopulationUtils.readPopulation(inputs.get(0).toString());
 
 		for (Person person : population.getPersons().values()) {
-			Plan selected = person.getSelectedPlan();
-
-			List<? extends Plan> toRemove = person.getPlans().stream()
-					.filter(plan -> !Objects.equals(plan, selected))
-					.toList();
-
-			// Need intermediate list to avoid concurrent modification
-			toRemove.forEach(person::removePlan);
+			keepSelectedPlan(person);
 		}
 
 		for (int i = 1; i < inputs.size(); i++) {
@@ -70,4 +77,178 @@ public class MergePlans implements MATSimAppCommand {
 
 		return 0;
 	}
+
+	/**
+	 * K-way merge of all inputs, which are read in parallel. Only a few persons per input are held in memory at once.
+	 */
+	private void mergeSorted() throws InterruptedException, ExecutionException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(inputs.size());
+
+		List<SortedInput> streams = new ArrayList<>();
+		for (Path input : inputs) {
+			SortedInput in = new SortedInput(input.toString());
+			in.start(executor);
+			streams.add(in);
+		}
+
+		StreamingPopulationWriter writer = new StreamingPopulationWriter();
+		writer.startStreaming(output.toString());
+
+		try {
+			while (true) {
+
+				Id<Person> min = null;
+				for (SortedInput in : streams) {
+					Person p = in.peek();
+					if (p != null && (min == null || p.getId().compareTo(min) < 0))
+						min = p.getId();
+				}
+
+				if (min == null)
+					break;
+
+				// Plans are added in the order of the inputs, the same as when merging in memory
+				Person person = null;
+				for (int i = 0; i < streams.size(); i++) {
+
+					Person p = streams.get(i).peek();
+					if (p == null || !p.getId().equals(min))
+						continue;
+
+					streams.get(i).poll();
+
+					if (i == 0) {
+						person = p;
+						keepSelectedPlan(person);
+					} else if (person == null) {
+						log.warn("Person {} not present in all populations.", p.getId());
+					} else
+						person.addPlan(p.getSelectedPlan());
+				}
+
+				if (person != null)
+					writer.run(person);
+			}
+		} finally {
+			writer.closeStreaming();
+			// Stops readers that are still blocked, if the merge failed
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Remove all plans except the selected one.
+	 */
+	private static void keepSelectedPlan(Person person) {
+		Plan selected = person.getSelectedPlan();
+
+		List<? extends Plan> toRemove = person.getPlans().stream()
+				.filter(plan -> !Objects.equals(plan, selected))
+				.toList();
+
+		// Need intermediate list to avoid concurrent modification
+		toRemove.forEach(person::removePlan);
+	}
+
+	/**
+	 * Reads one population in a separate thread and passes its persons in batches to the merging thread.
+	 */
+	private static final class SortedInput implements PersonAlgorithm {
+
+		private static final int BATCH_SIZE = 256;
+
+		/**
+		 * Marks the end of the input, readers never pass empty batches otherwise.
+		 */
+		private static final List<Person> END = List.of();
+
+		private final String filename;
+		private final BlockingQueue<List<Person>> queue = new ArrayBlockingQueue<>(16);
+		private Future<?> future;
+
+		/**
+		 * Batch being filled by the reader.
+		 */
+		private List<Person> batch = new ArrayList<>(BATCH_SIZE);
+
+		// State of the merging thread
+		private Iterator<Person> current = Collections.emptyIterator();
+		private Person head;
+		private Id<Person> last;
+		private boolean done;
+
+		private SortedInput(String filename) {
+			this.filename = filename;
+		}
+
+		void start(ExecutorService executor) {
+			future = executor.submit(() -> {
+				try {
+					log.info("Reading {}", filename);
+
+					StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+					reader.addAlgorithm(this);
+					reader.readFile(filename);
+
+					if (!batch.isEmpty())
+						queue.put(batch);
+				} finally {
+					queue.put(END);
+				}
+				return null;
+			});
+		}
+
+		@Override
+		public void run(Person person) {
+			batch.add(person);
+			if (batch.size() == BATCH_SIZE) {
+				try {
+					queue.put(batch);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(e);
+				}
+				batch = new ArrayList<>(BATCH_SIZE);
+			}
+		}
+
+		/**
+		 * Next person of this input without removing it.
+		 *
+		 * @return null if all persons have been read
+		 */
+		Person peek() throws InterruptedException, ExecutionException {
+			while (head == null && !done) {
+				if (current.hasNext()) {
+					Person p = current.next();
+					if (last != null && p.getId().compareTo(last) <= 0)
+						throw new IllegalStateException("Input %s is not sorted by person id, %s follows %s".formatted(filename, p.getId(), last));
+
+					last = p.getId();
+					head = p;
+				} else {
+					List<Person> b = queue.take();
+					if (b == END) {
+						done = true;
+						// Rethrows errors of the reader
+						future.get();
+					} else
+						current = b.iterator();
+				}
+			}
+
+			return head;
+		}
+
+		/**
+		 * Remove the next person of this input.
+		 */
+		Person poll() throws InterruptedException, ExecutionException {
+			Person p = peek();
+			head = null;
+			return p;
+		}
+	}
 }
@@ -0,0 +1,403 @@
+package org.matsim.prepare;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary snapshot of a network, which is much faster to read than the xml format.
+ * Nodes, links and their attributes are stored in flat sections, which are read via memory mapping.
+ * The snapshot also contains the links of the car network, so that the car network can be created without filtering.
+ * <p>
+ * Snapshots are written next to the xml file and are used transparently if they are up-to-date.
+ * Only attributes of type String, Double, Integer, Long and Boolean are supported, otherwise no snapshot is created.
+ */
+public final class NetworkSnapshot {
+
+	/**
+	 * File ending of snapshot files.
+	 */
+	public static final String SUFFIX = ".snapshot";
+
+	private static final Logger log = LogManager.getLogger(NetworkSnapshot.class);
+
+	private static final int MAGIC = 0x4e534e31;
+
+	private static final byte STRING = 0;
+	private static final byte DOUBLE = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte BOOLEAN = 4;
+
+	private NetworkSnapshot() {
+	}
+
+	/**
+	 * Read a network, either from a snapshot or xml file. For local xml files, the snapshot is created if it does not exist.
+	 */
+	public static Network readNetwork(String path) {
+		return read(path, false);
+	}
+
+	/**
+	 * Read the network, which only contains links that allow car, with car as their only mode.
+	 * This is the same network as created by the {@link TransportModeNetworkFilter}.
+	 */
+	public static Network readCarNetwork(String path) {
+		return read(path, true);
+	}
+
+	private static Network read(String path, boolean car) {
+
+		try {
+			if (path.endsWith(SUFFIX))
+				return read(Path.of(path), -1, -1, car);
+
+			Path xml = Path.of(path);
+			if (!Files.isRegularFile(xml))
+				return fromXml(path, car);
+
+			Path snapshot = xml.resolveSibling(xml.getFileName() + SUFFIX);
+
+			long size = Files.size(xml);
+			long modified = Files.getLastModifiedTime(xml).toMillis();
+
+			if (Files.isRegularFile(snapshot)) {
+				try {
+					Network network = read(snapshot, size, modified, car);
+					if (network != null) {
+						log.info("Read network snapshot {}", snapshot);
+						return network;
+					}
+				} catch (IOException | RuntimeException e) {
+					// Truncated or foreign files are replaced
+					log.warn("Could not read network snapshot {}, reading xml instead", snapshot, e);
+				}
+			}
+
+			Network network = NetworkUtils.readNetwork(path);
+
+			try {
+				write(network, snapshot, size, modified);
+			} catch (IllegalArgumentException | IOException e) {
+				log.warn("Could not write network snapshot {}", snapshot, e);
+			}
+
+			return car ? filterCar(network) : network;
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Network fromXml(String path, boolean car) {
+		Network network = NetworkUtils.readNetwork(path);
+		return car ? filterCar(network) : network;
+	}
+
+	private static Network filterCar(Network network) {
+		Network carNetwork = NetworkUtils.createNetwork();
+		new TransportModeNetworkFilter(network).filter(carNetwork, Set.of(TransportMode.car));
+		return carNetwork;
+	}
+
+	/**
+	 * Write a snapshot of the network.
+	 *
+	 * @param size     size of the source file, used to validate the snapshot
+	 * @param modified last modified time of the source file
+	 */
+	public static void write(Network network, Path path, long size, long modified) throws IOException {
+
+		Strings strings = new Strings();
+
+		List<Node> nodes = new ArrayList<>(network.getNodes().values());
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+
+		// Strings are collected first, so that they can be written at the beginning of the file
+		collect(strings, network.getAttributes());
+		nodes.forEach(n -> {
+			strings.index(n.getId().toString());
+			collect(strings, n.getAttributes());
+		});
+		links.forEach(l -> {
+			strings.index(l.getId().toString());
+			l.getAllowedModes().forEach(strings::index);
+			collect(strings, l.getAttributes());
+		});
+
+		// Each process uses its own temporary file, so that concurrent writers don't corrupt the snapshot
+		Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+
+		try {
+			writeData(network, tmp, strings, nodes, links, size, modified);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+
+		try {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	private static void writeData(Network network, Path tmp, Strings strings, List<Node> nodes, List<Link> links, long size, long modified) throws IOException {
+
+		Object2IntMap<Id<Node>> nodeIndex = new Object2IntOpenHashMap<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			nodeIndex.put(nodes.get(i).getId(), i);
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+
+			out.writeInt(MAGIC);
+			out.writeLong(size);
+			out.writeLong(modified);
+
+			out.writeInt(strings.list.size());
+			for (String s : strings.list) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeDouble(network.getCapacityPeriod());
+			out.writeDouble(network.getEffectiveLaneWidth());
+			writeAttributes(out, strings, network.getAttributes());
+
+			out.writeInt(nodes.size());
+			for (Node node : nodes) {
+				Coord coord = node.getCoord();
+				out.writeInt(strings.index(node.getId().toString()));
+				out.writeDouble(coord.getX());
+				out.writeDouble(coord.getY());
+				out.writeDouble(coord.hasZ() ? coord.getZ() : Double.NaN);
+				writeAttributes(out, strings, node.getAttributes());
+			}
+
+			IntList car = new IntArrayList();
+
+			out.writeInt(links.size());
+			for (int i = 0; i < links.size(); i++) {
+				Link link = links.get(i);
+				out.writeInt(strings.index(link.getId().toString()));
+				out.writeInt(nodeIndex.getInt(link.getFromNode().getId()));
+				out.writeInt(nodeIndex.getInt(link.getToNode().getId()));
+				out.writeDouble(link.getLength());
+				out.writeDouble(link.getFreespeed());
+				out.writeDouble(link.getCapacity());
+				out.writeDouble(link.getNumberOfLanes());
+
+				out.writeInt(link.getAllowedModes().size());
+				for (String mode : link.getAllowedModes()) {
+					out.writeInt(strings.index(mode));
+				}
+
+				writeAttributes(out, strings, link.getAttributes());
+
+				if (link.getAllowedModes().contains(TransportMode.car))
+					car.add(i);
+			}
+
+			// Precomputed car network
+			out.writeInt(car.size());
+			for (int i : car) {
+				out.writeInt(i);
+			}
+		}
+	}
+
+	/**
+	 * Read a snapshot, returns null if it does not belong to the source file.
+	 *
+	 * @param size     expected size of the source file, or -1 if not checked
+	 * @param modified expected last modified time of the source file
+	 */
+	private static Network read(Path path, long size, long modified, boolean car) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buf.getInt() != MAGIC)
+				throw new IllegalArgumentException("Not a network snapshot: " + path);
+
+			long s = buf.getLong();
+			long m = buf.getLong();
+			if (size >= 0 && (s != size || m != modified))
+				return null;
+
+			String[] strings = new String[buf.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[buf.getInt()];
+				buf.get(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+
+			Network network = NetworkUtils.createNetwork();
+			NetworkFactory f = network.getFactory();
+
+			network.setCapacityPeriod(buf.getDouble());
+			network.setEffectiveLaneWidth(buf.getDouble());
+			readAttributes(buf, strings, network.getAttributes());
+
+			Node[] nodes = new Node[buf.getInt()];
+			for (int i = 0; i < nodes.length; i++) {
+				Id<Node> id = Id.createNodeId(strings[buf.getInt()]);
+				double x = buf.getDouble();
+				double y = buf.getDouble();
+				double z = buf.getDouble();
+				nodes[i] = f.createNode(id, Double.isNaN(z) ? new Coord(x, y) : new Coord(x, y, z));
+				readAttributes(buf, strings, nodes[i].getAttributes());
+			}
+
+			int n = buf.getInt();
+			Link[] links = new Link[n];
+			for (int i = 0; i < n; i++) {
+				Link link = f.createLink(Id.createLinkId(strings[buf.getInt()]), nodes[buf.getInt()], nodes[buf.getInt()]);
+				link.setLength(buf.getDouble());
+				link.setFreespeed(buf.getDouble());
+				link.setCapacity(buf.getDouble());
+				link.setNumberOfLanes(buf.getDouble());
+
+				Set<String> modes = new HashSet<>();
+				int k = buf.getInt();
+				for (int j = 0; j < k; j++) {
+					modes.add(strings[buf.getInt()]);
+				}
+				link.setAllowedModes(modes);
+
+				readAttributes(buf, strings, link.getAttributes());
+				links[i] = link;
+			}
+
+			if (car) {
+				int[] carLinks = new int[buf.getInt()];
+				for (int i = 0; i < carLinks.length; i++) {
+					carLinks[i] = buf.getInt();
+				}
+
+				for (int i : carLinks) {
+					Link link = links[i];
+					addNode(network, link.getFromNode());
+					addNode(network, link.getToNode());
+					link.setAllowedModes(Set.of(TransportMode.car));
+					network.addLink(link);
+				}
+
+			} else {
+				for (Node node : nodes) {
+					network.addNode(node);
+				}
+				for (Link link : links) {
+					network.addLink(link);
+				}
+			}
+
+			return network;
+		}
+	}
+
+	private static void addNode(Network network, Node node) {
+		if (!network.getNodes().containsKey(node.getId()))
+			network.addNode(node);
+	}
+
+	private static void collect(Strings strings, Attributes attributes) {
+		for (Map.Entry<String, Object> e : attributes.getAsMap().entrySet()) {
+			strings.index(e.getKey());
+			if (e.getValue() instanceof String s)
+				strings.index(s);
+		}
+	}
+
+	private static void writeAttributes(DataOutputStream out, Strings strings, Attributes attributes) throws IOException {
+
+		Map<String, Object> map = attributes.getAsMap();
+		out.writeInt(map.size());
+
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			out.writeInt(strings.index(e.getKey()));
+			Object v = e.getValue();
+			if (v instanceof String str) {
+				out.writeByte(STRING);
+				out.writeInt(strings.index(str));
+			} else if (v instanceof Double d) {
+				out.writeByte(DOUBLE);
+				out.writeDouble(d);
+			} else if (v instanceof Integer i) {
+				out.writeByte(INTEGER);
+				out.writeInt(i);
+			} else if (v instanceof Long l) {
+				out.writeByte(LONG);
+				out.writeLong(l);
+			} else if (v instanceof Boolean b) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean(b);
+			} else
+				throw new IllegalArgumentException("Unsupported attribute type: " + v.getClass());
+		}
+	}
+
+	private static void readAttributes(ByteBuffer buf, String[] strings, Attributes attributes) {
+		int n = buf.getInt();
+		for (int i = 0; i < n; i++) {
+			String key = strings[buf.getInt()];
+			Object value = switch (buf.get()) {
+				case STRING -> strings[buf.getInt()];
+				case DOUBLE -> buf.getDouble();
+				case INTEGER -> buf.getInt();
+				case LONG -> buf.getLong();
+				case BOOLEAN -> buf.get() != 0;
+				default -> throw new IllegalStateException("Invalid attribute type");
+			};
+			attributes.putAttribute(key, value);
+		}
+	}
+
+	/**
+	 * String table.
+	 */
+	private static final class Strings {
+
+		private final Object2IntMap<String> index = new Object2IntOpenHashMap<>();
+		private final List<String> list = new ArrayList<>();
+
+		int index(String s) {
+			return index.computeIfAbsent(s, k -> {
+				list.add(s);
+				return list.size() - 1;
+			});
+		}
+	}
+
+}
@@ -12,12 +12,13 @@ import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.prepare.population.Attributes;
+import org.matsim.prepare.population.PersonRandom;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
 import java.util.List;
-import java.util.Random;
 import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @CommandLine.Command(
 		name = "actitopp",
@@ -27,6 +28,7 @@ import java.util.SplittableRandom;
 public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 
 	private static final Logger log = LogManager.getLogger(RunActitopp.class);
+	private static final String RANDOM_STREAM = "actitopp";
 
 	@CommandLine.Option(names = "--input", description = "Path to input population", required = true)
 	private Path input;
@@ -40,10 +42,16 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 	@CommandLine.Option(names = "--seed", description = "Seed used to generate plans", defaultValue = "1")
 	private long seed;
 
+	@CommandLine.Option(names = "--threads", description = "Number of threads to process persons")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
 	private PopulationFactory factory;
-	private int index;
+	private final AtomicInteger index = new AtomicInteger();
 
-	private ThreadLocal<Context> tl;
+	/**
+	 * Model files for each thread.
+	 */
+	private ThreadLocal<ModelFileBase> fileBases;
 
 	public static void main(String[] args) throws InvalidPatternException {
 		new RunActitopp().execute(args);
@@ -57,9 +65,9 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 
 		log.info("Generating activity chains...");
 
-		tl = ThreadLocal.withInitial(() -> new Context(seed));
+		fileBases = ThreadLocal.withInitial(ModelFileBase::new);
 
-		ParallelPersonAlgorithmUtils.run(population, 8, this);
+		ParallelPersonAlgorithmUtils.run(population, threads, this);
 
 		PopulationUtils.writePopulation(population, output.toString());
 
@@ -73,11 +81,11 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 		if (PersonUtils.getAge(person) < 10)
 			return;
 
-		Context ctx = tl.get();
+		ModelFileBase fileBase = fileBases.get();
 
 		// Assume that there is only the stay home plan, which is the selected one
 		for (int i = 0; i < n; i++) {
-			boolean newPlan = generatePlan(person, ctx);
+			boolean newPlan = generatePlan(person, new Context(fileBase, seed, person, i));
 
 			// Create a copy of the stay home plan if no new one was generated
 			if (!newPlan)
@@ -260,26 +268,24 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 
 		// TODO: edu commuting distances
 
-		return new ActitoppPerson(index++, children0_10, children_u18, age, employment,
+		return new ActitoppPerson(index.getAndIncrement(), children0_10, children_u18, age, employment,
 				gender, areaType, numberofcarsinhousehold);
 	}
 
 	/**
-	 * Context for one thread.
+	 * Context for generating one plan of a person. Only the model files are shared by the thread.
 	 */
 	private static final class Context {
 
-		private final ModelFileBase fileBase = new ModelFileBase();
+		private final ModelFileBase fileBase;
 
 		private final RNGHelper rng;
 		private final SplittableRandom rnd;
 
-		Context(long seed) {
-
-			// Generate a new uncorrelated seed
-			long l = new Random(seed).nextLong();
-			rng = new RNGHelper(l);
-			rnd = new SplittableRandom(l);
+		Context(ModelFileBase fileBase, long seed, Person person, int plan) {
+			this.fileBase = fileBase;
+			rnd = PersonRandom.get(seed, RANDOM_STREAM, person.getId(), plan);
+			rng = new RNGHelper(rnd.nextLong());
 		}
 	}
 
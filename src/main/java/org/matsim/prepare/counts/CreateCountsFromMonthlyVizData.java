@@ -21,12 +21,12 @@ import org.matsim.application.options.CountsOption;
 import org.matsim.application.options.CrsOptions;
 import org.matsim.application.options.CsvOptions;
 import org.matsim.application.prepare.counts.NetworkIndex;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.utils.geometry.CoordinateTransformation;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.counts.Count;
 import org.matsim.counts.Counts;
 import org.matsim.counts.CountsWriter;
+import org.matsim.prepare.NetworkSnapshot;
 import org.opengis.referencing.operation.TransformException;
 import picocli.CommandLine;
 import tech.tablesaw.api.DateColumn;
@@ -161,7 +161,7 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 
 	private void matchWithNetwork(Path networkPath, Path geometries, Map<String, Station> stations, CountsOption countsOption) throws TransformException, IOException {
 
-		Network network = NetworkUtils.readNetwork(networkPath.toString());
+		Network network = NetworkSnapshot.readNetwork(networkPath.toString());
 		CoordinateTransformation transformation = crs.getTransformation();
 
 		Map<Id<Link>, Geometry> networkGeometries = NetworkIndex.readGeometriesFromSumo(geometries.toString(), IdentityTransform.create(2));
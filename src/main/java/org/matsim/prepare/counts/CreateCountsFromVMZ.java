@@ -17,13 +17,13 @@ import org.matsim.application.options.CountsOption;
 import org.matsim.application.options.CrsOptions;
 import org.matsim.application.prepare.counts.NetworkIndex;
 import org.matsim.core.config.groups.NetworkConfigGroup;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.filter.NetworkFilterManager;
 import org.matsim.core.utils.geometry.CoordinateTransformation;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.counts.Count;
 import org.matsim.counts.Counts;
 import org.matsim.counts.CountsWriter;
+import org.matsim.prepare.NetworkSnapshot;
 import org.opengis.referencing.operation.TransformException;
 import picocli.CommandLine;
 
@@ -88,7 +88,7 @@ public class CreateCountsFromVMZ implements MATSimAppCommand {
 
 		Network net;
 		{
-			Network unfiltered = NetworkUtils.readNetwork(network.toString());
+			Network unfiltered = NetworkSnapshot.readNetwork(network.toString());
 			NetworkFilterManager manager = new NetworkFilterManager(unfiltered, new NetworkConfigGroup());
 			manager.addLinkFilter(l -> !l.getId().toString().startsWith("pt_"));
 
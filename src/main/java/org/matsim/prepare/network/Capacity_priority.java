@@ -6,6 +6,8 @@ import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 */
 public class Capacity_priority implements FeatureRegressor {
 
+    public static final Capacity_priority INSTANCE = new Capacity_priority();
+
     @Override
     public double predict(Object2DoubleMap<String> ft) {
         double[] data = new double[14];
@@ -29,6 +31,29 @@ public class Capacity_priority implements FeatureRegressor {
 
         return score(data);
     }
+    @Override
+    public void getData(double[] row, double[] data) {
+		data[0] = (row[0] - 148.0745794277257) / 111.09738260925752;
+		data[1] = (row[1] - 14.667442032560434) / 5.4536411840395225;
+		data[2] = (row[2] - 1.1944992599901332) / 1.1479306507188651;
+		data[3] = (row[3] - 1.2444499259990134) / 0.6166874690379405;
+		data[4] = (row[4] - 6.785273803650715) / 4.8225180177060665;
+		data[5] = row[5];
+		data[6] = row[6];
+		data[7] = row[7];
+		data[8] = row[8];
+		data[9] = row[9];
+		data[10] = row[10];
+		data[11] = row[11];
+		data[12] = row[12];
+		data[13] = row[13];
+    }
+
+    @Override
+    public double predictData(double[] data, double[] params) {
+        return score(data);
+    }
+
     public static double score(double[] input) {
         double var0;
         if (input[13] >= -0.5) {
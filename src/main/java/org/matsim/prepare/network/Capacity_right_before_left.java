@@ -6,6 +6,8 @@ import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 */
 public class Capacity_right_before_left implements FeatureRegressor {
 
+    public static final Capacity_right_before_left INSTANCE = new Capacity_right_before_left();
+
     @Override
     public double predict(Object2DoubleMap<String> ft) {
         double[] data = new double[14];
@@ -29,6 +31,29 @@ public class Capacity_right_before_left implements FeatureRegressor {
 
         return score(data);
     }
+    @Override
+    public void getData(double[] row, double[] data) {
+		data[0] = (row[0] - 143.2389153599584) / 82.89404850064653;
+		data[1] = (row[1] - 8.335057610673134) / 0.16560556934846477;
+		data[2] = (row[2] - 2.2646625660573507) / 0.5530393650197418;
+		data[3] = (row[3] - 1.001732651823616) / 0.04742831736799205;
+		data[4] = (row[4] - 10.911721389586763) / 3.6843422614733417;
+		data[5] = row[5];
+		data[6] = row[6];
+		data[7] = row[7];
+		data[8] = row[8];
+		data[9] = row[9];
+		data[10] = row[10];
+		data[11] = row[11];
+		data[12] = row[12];
+		data[13] = row[13];
+    }
+
+    @Override
+    public double predictData(double[] data, double[] params) {
+        return score(data);
+    }
+
     public static double score(double[] input) {
         double var0;
         if (input[6] >= 0.5) {
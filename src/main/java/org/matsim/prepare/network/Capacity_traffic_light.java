@@ -6,6 +6,8 @@ import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 */
 public class Capacity_traffic_light implements FeatureRegressor {
 
+    public static final Capacity_traffic_light INSTANCE = new Capacity_traffic_light();
+
     @Override
     public double predict(Object2DoubleMap<String> ft) {
         double[] data = new double[14];
@@ -29,6 +31,29 @@ public class Capacity_traffic_light implements FeatureRegressor {
 
         return score(data);
     }
+    @Override
+    public void getData(double[] row, double[] data) {
+		data[0] = (row[0] - 129.80599755865998) / 93.91484389753218;
+		data[1] = (row[1] - 12.726744879967448) / 3.0571847342843816;
+		data[2] = (row[2] - 2.4327953343279534) / 0.6498808003630541;
+		data[3] = (row[3] - 1.8202902482029024) / 0.9477667668865584;
+		data[4] = (row[4] - 13.943035399430354) / 4.355585031201389;
+		data[5] = row[5];
+		data[6] = row[6];
+		data[7] = row[7];
+		data[8] = row[8];
+		data[9] = row[9];
+		data[10] = row[10];
+		data[11] = row[11];
+		data[12] = row[12];
+		data[13] = row[13];
+    }
+
+    @Override
+    public double predictData(double[] data, double[] params) {
+        return score(data);
+    }
+
     public static double score(double[] input) {
         double var0;
         if (input[13] >= -0.5) {
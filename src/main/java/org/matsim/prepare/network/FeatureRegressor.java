@@ -2,11 +2,19 @@ package org.matsim.prepare.network;
 
 import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 
+import java.util.List;
+
 /**
  * Predictor interface for regression.
  */
 public interface FeatureRegressor {
 
+	/**
+	 * Names of the features used by the models. Rows and columns passed to the array based methods must be in this order.
+	 */
+	List<String> FEATURES = List.of("length", "speed", "numFoes", "numLanes", "junctionSize",
+		"dir_l", "dir_r", "dir_s", "dir_multiple_s", "dir_exclusive",
+		"priority_lower", "priority_equal", "priority_higher", "changeNumLanes");
 
 	/**
 	 * Predict value from given features.
@@ -28,4 +36,56 @@ public interface FeatureRegressor {
 		throw new UnsupportedOperationException("Not implemented");
 	}
 
+	/**
+	 * Write normalized data of a row with raw feature values, ordered as {@link #FEATURES}, into data.
+	 */
+	default void getData(double[] row, double[] data) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	/**
+	 * Predict from data that is already normalized.
+	 *
+	 * @param params model params, or null to use the default params (if applicable)
+	 */
+	default double predictData(double[] data, double[] params) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	/**
+	 * Predict from a row with raw feature values, ordered as {@link #FEATURES}.
+	 *
+	 * @param data   buffer with the length of {@link #FEATURES}, which is used for the normalized values
+	 * @param params model params, or null to use the default params (if applicable)
+	 */
+	default double predict(double[] row, double[] data, double[] params) {
+		getData(row, data);
+		for (int i = 0; i < data.length; i++)
+			if (Double.isNaN(data[i])) throw new IllegalArgumentException("Invalid data at index: " + i);
+
+		return predictData(data, params);
+	}
+
+	/**
+	 * Predict a batch of rows, given as columnar feature matrix.
+	 *
+	 * @param columns one array per feature, ordered as {@link #FEATURES}
+	 * @param rows    indices of the rows to predict
+	 * @param params  model params, or null to use the default params (if applicable)
+	 * @param out     prediction for each entry in rows
+	 */
+	default void predict(double[][] columns, int[] rows, double[] params, double[] out) {
+
+		double[] row = new double[FEATURES.size()];
+		double[] data = new double[FEATURES.size()];
+
+		for (int i = 0; i < rows.length; i++) {
+			for (int j = 0; j < row.length; j++) {
+				row[j] = columns[j][rows[i]];
+			}
+
+			out[i] = predict(row, data, params);
+		}
+	}
+
 }
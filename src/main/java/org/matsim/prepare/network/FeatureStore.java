@@ -0,0 +1,346 @@
+package org.matsim.prepare.network;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar storage of network edge features, with one array per column.
+ * The parsed csv is cached in a binary sidecar file next to it, which is memory mapped when loading again.
+ */
+public final class FeatureStore {
+
+	private static final Logger log = LogManager.getLogger(FeatureStore.class);
+
+	private static final int MAGIC = 0x46545331;
+
+	private final List<String> names;
+	private final double[][] columns;
+	private final List<String> junctionTypes;
+	private final byte[] junctionType;
+
+	/**
+	 * Row for each link id index, -1 if not present.
+	 */
+	private final int[] rows;
+
+	/**
+	 * Columns ordered as {@link FeatureRegressor#FEATURES}, created when needed.
+	 */
+	private double[][] modelColumns;
+
+	private FeatureStore(List<String> names, double[][] columns, List<String> junctionTypes, byte[] junctionType, List<Id<Link>> ids) {
+		this.names = names;
+		this.columns = columns;
+		this.junctionTypes = junctionTypes;
+		this.junctionType = junctionType;
+
+		this.rows = new int[Id.getNumberOfIds(Link.class)];
+		Arrays.fill(rows, -1);
+		for (int i = 0; i < ids.size(); i++) {
+			rows[ids.get(i).index()] = i;
+		}
+	}
+
+	/**
+	 * Load features from csv. For local files, the binary cache is used if it is up-to-date, or created otherwise.
+	 */
+	public static FeatureStore load(String input) throws IOException {
+
+		Path csv = Path.of(input);
+		if (!Files.isRegularFile(csv))
+			return readCsv(input).build();
+
+		Path cache = csv.resolveSibling(csv.getFileName() + ".bin");
+
+		long size = Files.size(csv);
+		long modified = Files.getLastModifiedTime(csv).toMillis();
+
+		if (Files.isRegularFile(cache)) {
+			try {
+				FeatureStore store = readCache(cache, size, modified);
+				if (store != null) {
+					log.info("Loaded features from {}", cache);
+					return store;
+				}
+			} catch (IOException | RuntimeException e) {
+				// Truncated or foreign files are replaced
+				log.warn("Could not read feature cache {}, reading csv instead", cache, e);
+			}
+		}
+
+		Builder builder = readCsv(input);
+
+		try {
+			writeCache(cache, builder, size, modified);
+		} catch (IOException e) {
+			log.warn("Could not write feature cache {}", cache, e);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Parse the csv file. Values that are not numeric are interpreted as booleans.
+	 */
+	private static Builder readCsv(String input) throws IOException {
+
+		try (CSVParser reader = new CSVParser(IOUtils.getBufferedReader(input),
+			CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build())) {
+
+			List<String> header = new ArrayList<>(reader.getHeaderNames());
+			header.remove("edgeId");
+			header.remove("junctionType");
+
+			Builder builder = new Builder(header);
+
+			for (CSVRecord row : reader) {
+
+				double[] values = new double[header.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = parse(row.get(header.get(i)));
+				}
+
+				builder.add(row.get("edgeId"), row.get("junctionType"), values);
+			}
+
+			return builder;
+		}
+	}
+
+	private static double parse(String v) {
+
+		// Avoid exceptions for the common boolean values
+		if (v.equalsIgnoreCase("true"))
+			return 1;
+		if (v.equalsIgnoreCase("false") || v.isEmpty())
+			return 0;
+
+		try {
+			return Double.parseDouble(v);
+		} catch (NumberFormatException e) {
+			// every not equal to True will be false
+			return Boolean.parseBoolean(v) ? 1 : 0;
+		}
+	}
+
+	private static void writeCache(Path cache, Builder builder, long size, long modified) throws IOException {
+
+		// Each process uses its own temporary file, so that concurrent writers don't corrupt the cache
+		Path tmp = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+
+			out.writeInt(MAGIC);
+			out.writeLong(size);
+			out.writeLong(modified);
+
+			int n = builder.ids.size();
+			out.writeInt(n);
+
+			writeStrings(out, builder.names);
+			writeStrings(out, builder.junctionTypes);
+			writeStrings(out, builder.ids);
+
+			for (int i = 0; i < n; i++) {
+				out.writeByte(builder.junctionType.get(i));
+			}
+
+			for (DoubleArrayList column : builder.columns) {
+				for (int i = 0; i < n; i++) {
+					out.writeDouble(column.getDouble(i));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+
+		try {
+			Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Read the cache, returns null if it does not belong to the csv file.
+	 */
+	private static FeatureStore readCache(Path cache, long size, long modified) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buf.getInt() != MAGIC || buf.getLong() != size || buf.getLong() != modified)
+				return null;
+
+			int n = buf.getInt();
+
+			List<String> names = readStrings(buf);
+			List<String> junctionTypes = readStrings(buf);
+			List<Id<Link>> ids = readStrings(buf).stream().map(Id::createLinkId).toList();
+
+			byte[] junctionType = new byte[n];
+			buf.get(junctionType);
+
+			double[][] columns = new double[names.size()][n];
+			for (double[] column : columns) {
+				buf.asDoubleBuffer().get(column);
+				buf.position(buf.position() + n * Double.BYTES);
+			}
+
+			return new FeatureStore(names, columns, junctionTypes, junctionType, ids);
+		}
+	}
+
+	private static List<String> readStrings(ByteBuffer buf) {
+		int n = buf.getInt();
+		List<String> strings = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			strings.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return strings;
+	}
+
+	/**
+	 * Number of rows.
+	 */
+	public int size() {
+		return junctionType.length;
+	}
+
+	/**
+	 * Row of a link, or -1 if not present.
+	 */
+	public int getRow(Id<Link> id) {
+		int idx = id.index();
+		return idx < rows.length ? rows[idx] : -1;
+	}
+
+	public String getJunctionType(int row) {
+		return junctionTypes.get(junctionType[row]);
+	}
+
+	/**
+	 * Values of one column.
+	 */
+	public double[] getColumn(String name) {
+		int idx = names.indexOf(name);
+		if (idx == -1)
+			throw new IllegalArgumentException("Unknown column: " + name);
+
+		return columns[idx];
+	}
+
+	/**
+	 * Columns in the order of {@link FeatureRegressor#FEATURES}, as needed for batch prediction.
+	 */
+	public synchronized double[][] getModelColumns() {
+		if (modelColumns == null)
+			modelColumns = FeatureRegressor.FEATURES.stream().map(this::getColumn).toArray(double[][]::new);
+
+		return modelColumns;
+	}
+
+	/**
+	 * Copy the values needed for prediction of one row, ordered as {@link FeatureRegressor#FEATURES}.
+	 */
+	public void getModelRow(int row, double[] values) {
+		double[][] model = getModelColumns();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = model[i][row];
+		}
+	}
+
+	/**
+	 * Create a map of all features of one row.
+	 */
+	public Object2DoubleMap<String> getFeatures(int row) {
+		Object2DoubleMap<String> ft = new Object2DoubleOpenHashMap<>();
+		ft.defaultReturnValue(Double.NaN);
+		for (int i = 0; i < names.size(); i++) {
+			ft.put(names.get(i), columns[i][row]);
+		}
+		return ft;
+	}
+
+	/**
+	 * Collects rows while parsing.
+	 */
+	private static final class Builder {
+
+		private final List<String> names;
+		private final List<DoubleArrayList> columns = new ArrayList<>();
+		private final List<String> ids = new ArrayList<>();
+		private final List<String> junctionTypes = new ArrayList<>();
+		private final Object2IntMap<String> typeIndex = new Object2IntOpenHashMap<>();
+		private final ByteArrayList junctionType = new ByteArrayList();
+
+		Builder(List<String> names) {
+			this.names = names;
+			for (int i = 0; i < names.size(); i++) {
+				columns.add(new DoubleArrayList());
+			}
+		}
+
+		void add(String id, String type, double[] values) {
+			ids.add(id);
+
+			int t = typeIndex.computeIfAbsent(type, k -> {
+				junctionTypes.add(type);
+				return junctionTypes.size() - 1;
+			});
+			junctionType.add((byte) t);
+
+			for (int i = 0; i < values.length; i++) {
+				columns.get(i).add(values[i]);
+			}
+		}
+
+		FeatureStore build() {
+			double[][] data = columns.stream().map(DoubleArrayList::toDoubleArray).toArray(double[][]::new);
+			return new FeatureStore(names, data, junctionTypes, junctionType.toByteArray(),
+				ids.stream().map(Id::createLinkId).toList());
+		}
+	}
+
+}
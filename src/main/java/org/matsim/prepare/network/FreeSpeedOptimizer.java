@@ -17,6 +17,15 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.SimpleBounds;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.CMAESOptimizer;
+import org.apache.commons.math3.random.MersenneTwister;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -33,11 +42,8 @@ import org.matsim.application.analysis.traffic.traveltime.SampleValidationRoutes
 import org.matsim.application.options.InputOptions;
 import org.matsim.contrib.osm.networkReader.LinkProperties;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.router.FastDijkstraFactory;
-import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
-import org.matsim.core.router.util.LeastCostPathCalculator;
-import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
 import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.prepare.NetworkSnapshot;
 import picocli.CommandLine;
 
 import java.io.File;
@@ -47,6 +53,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 
 @CommandLine.Command(
 	name = "network-freespeed",
@@ -67,15 +74,44 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 	@CommandLine.Option(names = "--output", description = "Path to output network")
 	private Path output;
 
-	@CommandLine.Option(names = "--params", description = "Apply params and write to output if given")
+	@CommandLine.Option(names = "--params", description = "Apply params and write to output if given, also used as start for the optimization")
 	private Path params;
 
+	@CommandLine.Option(names = "--threads", description = "Number of threads for routing the validation pairs")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	@CommandLine.Option(names = "--optimize", description = "Number of evaluations for the in-process optimization of the params. The server is not started if this is set.", defaultValue = "0")
+	private int evaluations;
+
+	@CommandLine.Option(names = "--sigma", description = "Initial step size for the optimization", defaultValue = "0.005")
+	private double sigma;
+
+	@CommandLine.Option(names = "--seed", description = "Random seed for the optimization", defaultValue = "0")
+	private long seed;
+
 	@CommandLine.Parameters(arity = "0..*", description = "Input validation files loaded from APIs")
 	private List<String> validationFiles;
 
 	private Network network;
 	private Object2DoubleMap<SampleValidationRoutes.FromToNodes> validationSet;
-	private Map<Id<Link>, PrepareNetworkParams.Feature> features;
+	private FeatureStore features;
+	private ValidationRouter router;
+
+	/**
+	 * Normalized model input of each link, which is the same for all params.
+	 */
+	private final Map<Id<Link>, double[]> modelData = new HashMap<>();
+
+	/**
+	 * Allowed speed of each link by id index, taken before any request has modified the network.
+	 * Evaluations only read this copy, because links without allowed speed attribute fall back to their current freespeed.
+	 */
+	private double[] allowedSpeed;
+
+	/**
+	 * Request whose model params are currently applied to the network, null if speeds are not the result of the models.
+	 */
+	private Request applied;
 
 	private ObjectMapper mapper;
 
@@ -94,17 +130,11 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 		// TODO: must be reusable class
 		// TODO: evaluate many factors (f) and write results to csv
 
-		network = input.getNetwork();
 		mapper = new ObjectMapper();
 		mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
 		mapper.setSerializationInclusion(JsonInclude.Include.NON_DEFAULT);
 
-		for (Link link : network.getLinks().values()) {
-			speeds.put(link.getId(), link.getFreespeed());
-		}
-
-		validationSet = readValidation(validationFiles);
-		features = PrepareNetworkParams.readFeatures(input.getPath("features.csv"), network.getLinks().size());
+		init(NetworkSnapshot.readNetwork(input.getNetworkPath()), readValidation(validationFiles), FeatureStore.load(input.getPath("features.csv")));
 
 		log.info("Initial score:");
 		evaluateNetwork(null, "init");
@@ -113,6 +143,16 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 		evaluateNetwork(new Request(0.75), "075");
 		evaluateNetwork(new Request(0.9), "09");
 
+		if (evaluations > 0) {
+			Request best = optimize(params != null ? mapper.readValue(params.toFile(), Request.class) : null);
+			evaluateNetwork(best, "network-opt");
+
+			if (output != null)
+				NetworkUtils.writeNetwork(network, output.toString());
+
+			return 0;
+		}
+
 		if (output != null && params != null) {
 			Request p = mapper.readValue(params.toFile(), Request.class);
 			evaluateNetwork(p, null);
@@ -138,58 +178,30 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 		return 0;
 	}
 
-	private Result evaluateNetwork(Request request, String save) throws IOException {
+	private synchronized Result evaluateNetwork(Request request, String save) throws IOException {
 
-		Map<Id<Link>, double[]> attributes = new HashMap<>();
+		Map<Id<Link>, double[]> attributes = Map.of();
 
 		if (request != null) {
-			for (Link link : network.getLinks().values()) {
-
-				double allowedSpeed = NetworkUtils.getAllowedSpeed(link);
-
-				if (request.f == 0) {
-
-					PrepareNetworkParams.Feature ft = features.get(link.getId());
-					String type = NetworkUtils.getHighwayType(link);
-
-					if (type.startsWith("motorway")) {
-						link.setFreespeed(allowedSpeed);
-						continue;
-					}
-
-					FeatureRegressor speedModel = switch (ft.junctionType()) {
-						case "traffic_light" -> Speedrelative_traffic_light.INSTANCE;
-						case "right_before_left" -> Speedrelative_right_before_left.INSTANCE;
-						case "priority" -> Speedrelative_priority.INSTANCE;
-						default -> throw new IllegalArgumentException("Unknown type: " + ft.junctionType());
-					};
-
-					double[] p = switch (ft.junctionType()) {
-						case "traffic_light" -> request.traffic_light;
-						case "right_before_left" -> request.rbl;
-						case "priority" -> request.priority;
-						default -> throw new IllegalArgumentException("Unknown type: " + ft.junctionType());
-					};
 
-					double speedFactor = Math.max(0.25, speedModel.predict(ft.features(), p));
-
-					attributes.put(link.getId(), speedModel.getData(ft.features()));
-
-					link.setFreespeed((double) link.getAttributes().getAttribute("allowed_speed") * speedFactor);
-					link.getAttributes().putAttribute("speed_factor", speedFactor);
-
-				} else
+			if (request.f == 0) {
+				applyModel(request);
+				attributes = modelData;
+				applied = request;
+			} else {
+				for (Link link : network.getLinks().values()) {
 					// Old MATSim freespeed logic
-					link.setFreespeed(LinkProperties.calculateSpeedIfSpeedTag(allowedSpeed, request.f));
+					link.setFreespeed(LinkProperties.calculateSpeedIfSpeedTag(allowedSpeed[link.getId().index()], request.f));
+				}
+				applied = null;
 			}
 
 			if (save != null)
 				mapper.writeValue(new File(save + "-params.json"), request);
 		}
 
-		FreeSpeedTravelTime tt = new FreeSpeedTravelTime();
-		OnlyTimeDependentTravelDisutility util = new OnlyTimeDependentTravelDisutility(tt);
-		LeastCostPathCalculator router = new FastDijkstraFactory(false).createPathCalculator(network, util, tt);
+		ValidationRouter.Route[] routes = router.route();
+		List<SampleValidationRoutes.FromToNodes> pairs = router.getPairs();
 
 		SummaryStatistics rmse = new SummaryStatistics();
 		SummaryStatistics mse = new SummaryStatistics();
@@ -203,30 +215,28 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 		List<Data> rbl = new ArrayList<>();
 		List<Data> traffic_light = new ArrayList<>();
 
-		for (Object2DoubleMap.Entry<SampleValidationRoutes.FromToNodes> e : validationSet.object2DoubleEntrySet()) {
+		for (int i = 0; i < pairs.size(); i++) {
 
-			SampleValidationRoutes.FromToNodes r = e.getKey();
+			SampleValidationRoutes.FromToNodes r = pairs.get(i);
+			ValidationRouter.Route path = routes[i];
 
-			Node fromNode = network.getNodes().get(r.fromNode());
-			Node toNode = network.getNodes().get(r.toNode());
-			LeastCostPathCalculator.Path path = router.calcLeastCostPath(fromNode, toNode, 0, null, null);
+			double target = validationSet.getDouble(r);
 
 			// iterate over the path, calc better correction
-			double distance = path.links.stream().mapToDouble(Link::getLength).sum();
-			double speed = distance / path.travelTime;
+			double speed = path.distance() / path.travelTime();
 
-			double correction = speed / e.getDoubleValue();
+			double correction = speed / target;
 
-			for (Link link : path.links) {
+			for (Link link : path.links()) {
 
 				if (!attributes.containsKey(link.getId()))
 					continue;
 
-				PrepareNetworkParams.Feature ft = features.get(link.getId());
+				String junctionType = features.getJunctionType(features.getRow(link.getId()));
 				double[] input = attributes.get(link.getId());
 				double speedFactor = (double) link.getAttributes().getAttribute("speed_factor");
 
-				List<Data> category = switch (ft.junctionType()) {
+				List<Data> category = switch (junctionType) {
 					case "traffic_light" -> traffic_light;
 					case "right_before_left" -> rbl;
 					case "priority" -> priority;
@@ -237,12 +247,15 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 			}
 
 
-			rmse.addValue(Math.pow(e.getDoubleValue() - speed, 2));
-			mse.addValue(Math.abs((e.getDoubleValue() - speed) * 3.6));
+			rmse.addValue(Math.pow(target - speed, 2));
+			mse.addValue(Math.abs((target - speed) * 3.6));
 
-			if (csv != null)
+			if (csv != null) {
+				Node fromNode = network.getNodes().get(r.fromNode());
+				Node toNode = network.getNodes().get(r.toNode());
 				csv.printRecord(r.fromNode(), r.toNode(), (int) CoordUtils.calcEuclideanDistance(fromNode.getCoord(), toNode.getCoord()),
-					(int) distance, (int) path.travelTime);
+					(int) path.distance(), (int) path.travelTime());
+			}
 		}
 
 		if (csv != null)
@@ -253,6 +266,287 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 		return new Result(rmse.getMean(), mse.getMean(), priority, rbl, traffic_light);
 	}
 
+	/**
+	 * Set the network, validation data and features, and prepare the routing.
+	 */
+	void init(Network network, Object2DoubleMap<SampleValidationRoutes.FromToNodes> validationSet, FeatureStore features) {
+
+		this.network = network;
+		this.validationSet = validationSet;
+		this.features = features;
+
+		for (Link link : network.getLinks().values()) {
+			speeds.put(link.getId(), link.getFreespeed());
+		}
+
+		router = new ValidationRouter(network, new ArrayList<>(validationSet.keySet()), threads);
+		initModelData();
+	}
+
+	/**
+	 * Calculate the normalized model input and the allowed speed of all links.
+	 */
+	private void initModelData() {
+
+		allowedSpeed = new double[Id.getNumberOfIds(Link.class)];
+		double[] values = new double[FeatureRegressor.FEATURES.size()];
+
+		for (Link link : network.getLinks().values()) {
+
+			String type = NetworkUtils.getHighwayType(link);
+
+			if (type.startsWith("motorway")) {
+				allowedSpeed[link.getId().index()] = NetworkUtils.getAllowedSpeed(link);
+				continue;
+			}
+
+			allowedSpeed[link.getId().index()] = (double) link.getAttributes().getAttribute("allowed_speed");
+
+			int row = features.getRow(link.getId());
+
+			double[] data = new double[values.length];
+			features.getModelRow(row, values);
+			getSpeedModel(features.getJunctionType(row)).getData(values, data);
+			for (int i = 0; i < data.length; i++)
+				if (Double.isNaN(data[i])) throw new IllegalArgumentException("Invalid data at index: " + i);
+
+			modelData.put(link.getId(), data);
+		}
+	}
+
+	/**
+	 * Apply the speed models with the params of the request. Links of junction types, whose params did not change since the last request, are skipped.
+	 */
+	private void applyModel(Request request) {
+
+		// Params are compared once per junction type, instead of for every link
+		Map<String, Boolean> unchanged = new HashMap<>();
+		for (String type : List.of("traffic_light", "right_before_left", "priority")) {
+			unchanged.put(type, applied != null && Arrays.equals(getParams(applied, type), getParams(request, type)));
+		}
+
+		for (Link link : network.getLinks().values()) {
+
+			double[] data = modelData.get(link.getId());
+
+			// Motorways
+			if (data == null) {
+				link.setFreespeed(allowedSpeed[link.getId().index()]);
+				continue;
+			}
+
+			String junctionType = features.getJunctionType(features.getRow(link.getId()));
+
+			// Speed factors of this link are still the same
+			if (unchanged.getOrDefault(junctionType, false))
+				continue;
+
+			double speedFactor = Math.max(0.25, getSpeedModel(junctionType).predictData(data, getParams(request, junctionType)));
+
+			link.setFreespeed(allowedSpeed[link.getId().index()] * speedFactor);
+			link.getAttributes().putAttribute("speed_factor", speedFactor);
+		}
+	}
+
+	/**
+	 * Freespeed of all links with the params of the request, indexed by the link id index.
+	 * Only immutable link data is used, so that the network can be modified concurrently.
+	 *
+	 * @param factors if not null, the speed factor of each link is stored in this array
+	 */
+	private double[] computeSpeeds(Request request, double[] factors) {
+
+		double[] result = new double[allowedSpeed.length];
+
+		for (Link link : network.getLinks().values()) {
+
+			int idx = link.getId().index();
+
+			if (request.f != 0) {
+				// Old MATSim freespeed logic
+				result[idx] = LinkProperties.calculateSpeedIfSpeedTag(allowedSpeed[idx], request.f);
+				continue;
+			}
+
+			double[] data = modelData.get(link.getId());
+
+			if (data == null) {
+				result[idx] = allowedSpeed[idx];
+				continue;
+			}
+
+			String junctionType = features.getJunctionType(features.getRow(link.getId()));
+			double speedFactor = Math.max(0.25, getSpeedModel(junctionType).predictData(data, getParams(request, junctionType)));
+
+			result[idx] = allowedSpeed[idx] * speedFactor;
+			if (factors != null)
+				factors[idx] = speedFactor;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Evaluate requests concurrently with speed overlays. The network is not modified, so this method is thread-safe.
+	 *
+	 * @param data whether to collect the model data of the links, otherwise only the errors are calculated.
+	 *             Requests with a factor f are not based on the models, so no data is collected for them.
+	 */
+	List<Result> evaluate(List<Request> requests, boolean data) {
+
+		double[][] overlays = new double[requests.size()][];
+		double[][] factors = new double[requests.size()][];
+
+		IntStream.range(0, requests.size()).parallel().forEach(i -> {
+			factors[i] = data && requests.get(i).f == 0 ? new double[allowedSpeed.length] : null;
+			overlays[i] = computeSpeeds(requests.get(i), factors[i]);
+		});
+
+		ValidationRouter.Route[][] routes = router.route(overlays);
+
+		List<Result> results = new ArrayList<>();
+		for (int i = 0; i < requests.size(); i++) {
+			results.add(createResult(routes[i], factors[i]));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Calculate errors of the routes and collect the data for each junction type if speed factors are given.
+	 */
+	private Result createResult(ValidationRouter.Route[] routes, double[] factors) {
+
+		List<SampleValidationRoutes.FromToNodes> pairs = router.getPairs();
+
+		SummaryStatistics rmse = new SummaryStatistics();
+		SummaryStatistics mse = new SummaryStatistics();
+
+		List<Data> priority = new ArrayList<>();
+		List<Data> rbl = new ArrayList<>();
+		List<Data> traffic_light = new ArrayList<>();
+
+		for (int i = 0; i < pairs.size(); i++) {
+
+			double target = validationSet.getDouble(pairs.get(i));
+			double speed = routes[i].distance() / routes[i].travelTime();
+			double correction = speed / target;
+
+			if (factors != null) {
+				for (Link link : routes[i].links()) {
+
+					double[] input = modelData.get(link.getId());
+					if (input == null)
+						continue;
+
+					double speedFactor = factors[link.getId().index()];
+
+					List<Data> category = switch (features.getJunctionType(features.getRow(link.getId()))) {
+						case "traffic_light" -> traffic_light;
+						case "right_before_left" -> rbl;
+						case "priority" -> priority;
+						default -> throw new IllegalArgumentException("not happening");
+					};
+
+					category.add(new Data(input, speedFactor, speedFactor / correction));
+				}
+			}
+
+			rmse.addValue(Math.pow(target - speed, 2));
+			mse.addValue(Math.abs((target - speed) * 3.6));
+		}
+
+		return new Result(rmse.getMean(), mse.getMean(), priority, rbl, traffic_light);
+	}
+
+	/**
+	 * Optimize the params in-process with CMA-ES, minimizing the mean absolute error.
+	 *
+	 * @param start initial params, or null to start from the model defaults
+	 */
+	private Request optimize(Request start) {
+
+		double[][] init = start != null ? new double[][]{start.priority, start.rbl, start.traffic_light} :
+			new double[][]{TreeModel.get("Speedrelative_priority").getDefaultParams(),
+				TreeModel.get("Speedrelative_right_before_left").getDefaultParams(),
+				TreeModel.get("Speedrelative_traffic_light").getDefaultParams()};
+
+		int n = Arrays.stream(init).mapToInt(p -> p.length).sum();
+		double[] x0 = new double[n];
+		for (int i = 0, pos = 0; i < init.length; pos += init[i].length, i++) {
+			System.arraycopy(init[i], 0, x0, pos, init[i].length);
+		}
+
+		double[] sigmas = new double[n];
+		Arrays.fill(sigmas, sigma);
+
+		double[] best = x0.clone();
+		double[] bestValue = {evaluate(List.of(toRequest(x0, init)), false).get(0).mse()};
+
+		log.info("Starting optimization of {} params, initial mae: {}", n, bestValue[0]);
+
+		MultivariateFunction f = x -> {
+			double v = evaluate(List.of(toRequest(x, init)), false).get(0).mse();
+			if (v < bestValue[0]) {
+				bestValue[0] = v;
+				System.arraycopy(x, 0, best, 0, n);
+				log.info("Improved mae: {}", v);
+			}
+			return v;
+		};
+
+		int population = 4 + (int) (3 * Math.log(n));
+
+		// Only the diagonal of the covariance matrix is adapted, because of the large number of params
+		CMAESOptimizer optimizer = new CMAESOptimizer(Integer.MAX_VALUE, 0, true, Integer.MAX_VALUE, 0,
+			new MersenneTwister(seed), false, null);
+
+		try {
+			optimizer.optimize(new MaxEval(evaluations), new ObjectiveFunction(f), GoalType.MINIMIZE,
+				new InitialGuess(x0), SimpleBounds.unbounded(n), new CMAESOptimizer.Sigma(sigmas), new CMAESOptimizer.PopulationSize(population));
+		} catch (TooManyEvaluationsException e) {
+			log.info("Reached maximum number of {} evaluations", evaluations);
+		}
+
+		log.info("Best mae: {}", bestValue[0]);
+
+		return toRequest(best, init);
+	}
+
+	/**
+	 * Split a flat params vector into a request, using the sizes of the given params.
+	 */
+	private static Request toRequest(double[] x, double[][] sizes) {
+		double[][] p = new double[sizes.length][];
+		for (int i = 0, pos = 0; i < sizes.length; pos += sizes[i].length, i++) {
+			p[i] = Arrays.copyOfRange(x, pos, pos + sizes[i].length);
+		}
+
+		Request request = new Request();
+		request.priority = p[0];
+		request.rbl = p[1];
+		request.traffic_light = p[2];
+		return request;
+	}
+
+	private static FeatureRegressor getSpeedModel(String junctionType) {
+		return switch (junctionType) {
+			case "traffic_light" -> TreeModel.get("Speedrelative_traffic_light");
+			case "right_before_left" -> TreeModel.get("Speedrelative_right_before_left");
+			case "priority" -> TreeModel.get("Speedrelative_priority");
+			default -> throw new IllegalArgumentException("Unknown type: " + junctionType);
+		};
+	}
+
+	private static double[] getParams(Request request, String junctionType) {
+		return switch (junctionType) {
+			case "traffic_light" -> request.traffic_light;
+			case "right_before_left" -> request.rbl;
+			case "priority" -> request.priority;
+			default -> throw new IllegalArgumentException("Unknown type: " + junctionType);
+		};
+	}
+
 	/**
 	 * Calculate the target speed.
 	 */
@@ -279,17 +573,17 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 		return result;
 	}
 
-	private record Data(double[] x, double yPred, double yTrue) {
+	record Data(double[] x, double yPred, double yTrue) {
 
 	}
 
-	private record Result(double rmse, double mse, List<Data> priority, List<Data> rbl, List<Data> traffic_light) {}
+	record Result(double rmse, double mse, List<Data> priority, List<Data> rbl, List<Data> traffic_light) {}
 
 
 	/**
 	 * JSON request containing desired parameters.
 	 */
-	private static final class Request {
+	static final class Request {
 
 		double[] priority;
 		double[] rbl;
@@ -322,6 +616,19 @@ public class FreeSpeedOptimizer implements MATSimAppCommand {
 		@Override
 		protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 
+			// Multiple requests are evaluated concurrently, without modifying the network
+			if (req.getRequestURI().equals("/batch")) {
+				Request[] requests = mapper.readValue(req.getInputStream(), Request[].class);
+				List<Result> results = evaluate(Arrays.asList(requests), true);
+
+				resp.setStatus(200);
+
+				PrintWriter writer = resp.getWriter();
+				mapper.writeValue(writer, results);
+				writer.close();
+				return;
+			}
+
 			Request request = mapper.readValue(req.getInputStream(), Request.class);
 
 			boolean save = req.getRequestURI().equals("/save");
@@ -1,14 +1,7 @@
 package org.matsim.prepare.network;
 
-import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
-import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.IdMap;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.application.CommandSpec;
@@ -16,13 +9,9 @@ import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.InputOptions;
 import org.matsim.application.options.OutputOptions;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.utils.io.IOUtils;
+import org.matsim.prepare.NetworkSnapshot;
 import picocli.CommandLine;
 
-import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-
 @CommandLine.Command(
 	name = "network-params", description = "Apply network parameters for capacity and speed."
 )
@@ -63,52 +52,23 @@ public class PrepareNetworkParams implements MATSimAppCommand {
 		return 3600 * Qc;
 	}
 
-	/**
-	 * Read network edge features from csv.
-	 */
-	static Map<Id<Link>, Feature> readFeatures(String input, int size) throws IOException {
-
-		Map<Id<Link>, Feature> features = new IdMap<>(Link.class, size);
-
-		try (CSVParser reader = new CSVParser(IOUtils.getBufferedReader(input),
-			CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build())) {
-
-			List<String> header = reader.getHeaderNames();
-
-			for (CSVRecord row : reader) {
-
-				Id<Link> id = Id.createLinkId(row.get("edgeId"));
-
-				Object2DoubleOpenHashMap<String> ft = new Object2DoubleOpenHashMap<>();
-				ft.defaultReturnValue(Double.NaN);
-
-				for (String column : header) {
-					String v = row.get(column);
-					try {
-						ft.put(column, Double.parseDouble(v));
-					} catch (NumberFormatException e) {
-						// every not equal to True will be false
-						ft.put(column, Boolean.parseBoolean(v) ? 1 : 0);
-					}
-				}
-
-				features.put(id, new Feature(row.get("junctionType"), ft));
-			}
-		}
-
-		return features;
-	}
-
 	@Override
 	public Integer call() throws Exception {
 
-		Network network = input.getNetwork();
+		Network network = NetworkSnapshot.readNetwork(input.getNetworkPath());
+
+		FeatureStore features = FeatureStore.load(input.getPath("features.csv"));
 
-		Map<Id<Link>, Feature> features = readFeatures(input.getPath("features.csv"), network.getLinks().size());
+		double[] values = new double[FeatureRegressor.FEATURES.size()];
+		double[] data = new double[FeatureRegressor.FEATURES.size()];
 
 		for (Link link : network.getLinks().values()) {
-			Feature ft = features.get(link.getId());
-			applyChanges(link, ft.junctionType, ft.features);
+			int row = features.getRow(link.getId());
+			if (row == -1)
+				throw new IllegalStateException("No features for link " + link.getId());
+
+			features.getModelRow(row, values);
+			applyChanges(link, features.getJunctionType(row), values, data);
 		}
 
 		log.warn("Observed {} warnings out of {} links", warn, network.getLinks().size());
@@ -120,21 +80,25 @@ public class PrepareNetworkParams implements MATSimAppCommand {
 
 	/**
 	 * Apply speed and capacity models and apply changes.
+	 *
+	 * @param values feature values, ordered as {@link FeatureRegressor#FEATURES}
+	 * @param data   buffer for the normalized values
 	 */
-	private void applyChanges(Link link, String junctionType, Object2DoubleMap<String> features) {
+	private void applyChanges(Link link, String junctionType, double[] values, double[] data) {
 
 		String type = NetworkUtils.getHighwayType(link);
 
+		// Capacity models have no params and are faster as generated code
 		FeatureRegressor capacity = switch (junctionType) {
-			case "traffic_light" -> new Capacity_traffic_light();
-			case "right_before_left" -> new Capacity_right_before_left();
-			case "priority" -> new Capacity_priority();
+			case "traffic_light" -> Capacity_traffic_light.INSTANCE;
+			case "right_before_left" -> Capacity_right_before_left.INSTANCE;
+			case "priority" -> Capacity_priority.INSTANCE;
 			default -> throw new IllegalArgumentException("Unknown type: " + junctionType);
 		};
 
-		double perLane = capacity.predict(features);
+		double perLane = capacity.predict(values, data, null);
 
-		double cap = capacityEstimate(features.getDouble("speed"));
+		double cap = capacityEstimate(values[FeatureRegressor.FEATURES.indexOf("speed")]);
 
 		boolean modified = false;
 
@@ -161,13 +125,13 @@ public class PrepareNetworkParams implements MATSimAppCommand {
 		if (!type.startsWith("motorway")) {
 
 			FeatureRegressor speedModel = switch (junctionType) {
-				case "traffic_light" -> new Speedrelative_traffic_light();
-				case "right_before_left" -> new Speedrelative_right_before_left();
-				case "priority" -> new Speedrelative_priority();
+				case "traffic_light" -> TreeModel.get("Speedrelative_traffic_light");
+				case "right_before_left" -> TreeModel.get("Speedrelative_right_before_left");
+				case "priority" -> TreeModel.get("Speedrelative_priority");
 				default -> throw new IllegalArgumentException("Unknown type: " + junctionType);
 			};
 
-			speedFactor = speedModel.predict(features);
+			speedFactor = speedModel.predict(values, data, null);
 
 			if (speedFactor > 1) {
 				log.warn("Reducing speed factor on {} from {} to 1", link.getId(), speedFactor);
@@ -190,7 +154,4 @@ public class PrepareNetworkParams implements MATSimAppCommand {
 		link.getAttributes().putAttribute("speed_factor", speedFactor);
 	}
 
-	record Feature(String junctionType, Object2DoubleMap<String> features) {
-	}
-
 }
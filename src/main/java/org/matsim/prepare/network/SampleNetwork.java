@@ -10,6 +10,7 @@ import org.locationtech.jts.geom.*;
 import org.locationtech.jts.io.WKTWriter;
 import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
@@ -27,6 +28,7 @@ import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
 import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.prepare.NetworkSnapshot;
 import org.matsim.prepare.RunOpenBerlinCalibration;
 import org.matsim.vehicles.Vehicle;
 import picocli.CommandLine;
@@ -35,6 +37,10 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -49,6 +55,8 @@ import java.util.stream.Collectors;
 public class SampleNetwork implements MATSimAppCommand {
 	private static final Logger log = LogManager.getLogger(SampleNetwork.class);
 
+	private static final int BATCH_SIZE = 256;
+
 	@CommandLine.Mixin
 	private InputOptions input = InputOptions.ofCommand(SampleNetwork.class);
 
@@ -58,6 +66,12 @@ public class SampleNetwork implements MATSimAppCommand {
 	@CommandLine.Option(names = "--sample-size", description = "Number of samples to collect for each category.", defaultValue = "5000")
 	private int sample;
 
+	@CommandLine.Option(names = "--routes", description = "Number of city routes to sample.", defaultValue = "3000")
+	private int routes;
+
+	@CommandLine.Option(names = "--threads", description = "Number of threads for sampling routes.", defaultValue = "4")
+	private int threads;
+
 	public static void main(String[] args) {
 		new SampleNetwork().execute(args);
 	}
@@ -115,7 +129,7 @@ public class SampleNetwork implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
-		Network network = input.getNetwork();
+		Network network = NetworkSnapshot.readNetwork(input.getNetworkPath());
 
 		Map<String, ? extends List<? extends Node>> byType = network.getNodes().values().stream().collect(Collectors.groupingBy(
 			n -> (String) n.getAttributes().getAttribute("type"), Collectors.toList()
@@ -176,65 +190,46 @@ public class SampleNetwork implements MATSimAppCommand {
 
 		Network cityNetwork = createCityNetwork(network);
 
-		RandomizedTravelTime tt = new RandomizedTravelTime(rnd);
-
-		LeastCostPathCalculator router = createRandomizedRouter(network, tt);
-
-		sampleCityRoutes(cityNetwork, router, tt, rnd);
+		sampleCityRoutes(network, cityNetwork, rnd);
 
 		return 0;
 	}
 
 	/**
-	 * Samples routes from the network.
+	 * Samples routes from the network. Each route uses its own random generator, which are split in order from the given one.
+	 * Therefore, the result only depends on the seed and not on the number of threads.
 	 */
-	private void sampleCityRoutes(Network network, LeastCostPathCalculator router, RandomizedTravelTime tt, SplittableRandom rnd) throws IOException {
+	private void sampleCityRoutes(Network network, Network cityNetwork, SplittableRandom rnd) throws IOException, InterruptedException, ExecutionException {
+
+		List<? extends Link> links = new ArrayList<>(cityNetwork.getLinks().values());
 
-		List<? extends Link> links = new ArrayList<>(network.getLinks().values());
+		// Make sure the spatial index is built before it is used concurrently
+		NetworkUtils.getNearestLink(cityNetwork, links.get(0).getCoord());
 
-		GeometryFactory f = new GeometryFactory();
-		WKTWriter w = new WKTWriter();
-		w.setPrecisionModel(new PrecisionModel(1));
+		ThreadLocal<RouteSampler> samplers = ThreadLocal.withInitial(() -> new RouteSampler(network, cityNetwork, links));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
 
 		try (CSVPrinter csv = new CSVPrinter(Files.newBufferedWriter(output.getPath("routes.txt")), CSVFormat.DEFAULT)) {
 
 			csv.printRecord("fromEdge", "toEdge", "min_capacity", "travel_time", "geometry");
 
-			for (int i = 0; i < 3000; i++) {
-
-				Link link = links.get(rnd.nextInt(0, links.size()));
-
-				Coord dest = rndCoord(rnd, 6000, link);
-
-				Link to = NetworkUtils.getNearestLink(network, dest);
+			// Routes are computed in batches and written in order
+			for (int start = 0; start < routes; start += BATCH_SIZE) {
 
-				LeastCostPathCalculator.Path path = router.calcLeastCostPath(link.getFromNode(), to.getToNode(), 0, null, null);
-
-				if (path.nodes.size() < 2) {
-					i--;
-					continue;
+				List<Future<SampledRoute>> batch = new ArrayList<>();
+				for (int i = start; i < Math.min(routes, start + BATCH_SIZE); i++) {
+					SplittableRandom r = rnd.split();
+					batch.add(executor.submit(() -> samplers.get().sample(r)));
 				}
 
-				double minCapacity = path.links.stream().mapToDouble(Link::getCapacity).min().orElse(-1);
-
-				LineString lineString = f.createLineString(path.nodes.stream().map(n -> MGC.coord2Point(n.getCoord()).getCoordinate()).toArray(Coordinate[]::new));
-
-				Polygon polygon = (Polygon) lineString.buffer(100);
-
-				Polygon simplified = (Polygon) TopologyPreservingSimplifier.simplify(polygon, 30);
-
-				csv.print(link.getId());
-				csv.print(path.links.get(path.links.size() - 1).getId());
-				csv.print(minCapacity);
-				csv.print(path.travelTime);
-				csv.print(w.write(simplified));
-
-				csv.println();
-
-				// Reset randomness
-				tt.reset();
+				for (Future<SampledRoute> f : batch) {
+					SampledRoute route = f.get();
+					csv.printRecord(route.from(), route.to(), route.minCapacity(), route.travelTime(), route.geometry());
+				}
 			}
 
+		} finally {
+			executor.shutdown();
 		}
 	}
 
@@ -255,25 +250,78 @@ public class SampleNetwork implements MATSimAppCommand {
 	}
 
 	/**
-	 * Router with randomization.
+	 * Samples single routes, each thread uses its own instance.
 	 */
-	private LeastCostPathCalculator createRandomizedRouter(Network network, TravelTime tt) {
+	private static final class RouteSampler {
+
+		private final Network cityNetwork;
+		private final List<? extends Link> links;
+		private final RandomizedTravelTime tt = new RandomizedTravelTime();
+		private final LeastCostPathCalculator router;
+		private final GeometryFactory f = new GeometryFactory();
+		private final WKTWriter w = new WKTWriter();
+
+		RouteSampler(Network network, Network cityNetwork, List<? extends Link> links) {
+			this.cityNetwork = cityNetwork;
+			this.links = links;
+			this.router = createRandomizedRouter(network, tt);
+			this.w.setPrecisionModel(new PrecisionModel(1));
+		}
+
+		/**
+		 * Router with randomization.
+		 */
+		private static LeastCostPathCalculator createRandomizedRouter(Network network, TravelTime tt) {
 
-		OnlyTimeDependentTravelDisutility util = new OnlyTimeDependentTravelDisutility(tt);
-		return new FastDijkstraFactory(false).createPathCalculator(network, util, tt);
+			OnlyTimeDependentTravelDisutility util = new OnlyTimeDependentTravelDisutility(tt);
+			return new FastDijkstraFactory(false).createPathCalculator(network, util, tt);
+		}
+
+		SampledRoute sample(SplittableRandom rnd) {
+
+			// Reset randomness
+			tt.reset(rnd);
+
+			while (true) {
+
+				Link link = links.get(rnd.nextInt(0, links.size()));
+
+				Coord dest = rndCoord(rnd, 6000, link);
+
+				Link to = NetworkUtils.getNearestLink(cityNetwork, dest);
+
+				LeastCostPathCalculator.Path path = router.calcLeastCostPath(link.getFromNode(), to.getToNode(), 0, null, null);
+
+				if (path.nodes.size() < 2)
+					continue;
+
+				double minCapacity = path.links.stream().mapToDouble(Link::getCapacity).min().orElse(-1);
+
+				LineString lineString = f.createLineString(path.nodes.stream().map(n -> MGC.coord2Point(n.getCoord()).getCoordinate()).toArray(Coordinate[]::new));
+
+				Polygon polygon = (Polygon) lineString.buffer(100);
+
+				Polygon simplified = (Polygon) TopologyPreservingSimplifier.simplify(polygon, 30);
+
+				return new SampledRoute(link.getId(), path.links.get(path.links.size() - 1).getId(), minCapacity, path.travelTime, w.write(simplified));
+			}
+		}
+	}
+
+	private record SampledRoute(Id<Link> from, Id<Link> to, double minCapacity, double travelTime, String geometry) {
 	}
 
 	private static final class RandomizedTravelTime implements TravelTime {
 
 		private final Object2DoubleMap<Link> factors = new Object2DoubleOpenHashMap<>();
 
-		private final SplittableRandom rnd;
+		private SplittableRandom rnd;
 
-		RandomizedTravelTime(SplittableRandom rnd) {
+		/**
+		 * Clear the factors and draw new ones from the given generator.
+		 */
+		void reset(SplittableRandom rnd) {
 			this.rnd = rnd;
-		}
-
-		void reset() {
 			factors.clear();
 		}
 
@@ -44,6 +44,29 @@ public final class Speedrelative_priority implements FeatureRegressor {
     
         return score(data, params);
     }
+    @Override
+    public void getData(double[] row, double[] data) {
+		data[0] = (row[0] - 146.19835633626096) / 105.72932259026847;
+		data[1] = (row[1] - 13.76408333576493) / 4.076913004789775;
+		data[2] = (row[2] - 1.284905605322284) / 1.1453318033366016;
+		data[3] = (row[3] - 1.2330250065653177) / 0.6202185676684495;
+		data[4] = (row[4] - 7.121677219806834) / 4.776491989487674;
+		data[5] = row[5];
+		data[6] = row[6];
+		data[7] = row[7];
+		data[8] = row[8];
+		data[9] = row[9];
+		data[10] = row[10];
+		data[11] = row[11];
+		data[12] = row[12];
+		data[13] = row[13];
+    }
+
+    @Override
+    public double predictData(double[] data, double[] params) {
+        return score(data, params == null ? DEFAULT_PARAMS : params);
+    }
+
     public static double score(double[] input, double[] params) {
         double var0;
         if (input[8] > 0.000000000000000000000000000000000010000000180025095) {
@@ -44,6 +44,29 @@ public final class Speedrelative_right_before_left implements FeatureRegressor {
     
         return score(data, params);
     }
+    @Override
+    public void getData(double[] row, double[] data) {
+		data[0] = (row[0] - 133.10125331063188) / 78.97094374399138;
+		data[1] = (row[1] - 8.333418463866819) / 0.13514417432622952;
+		data[2] = (row[2] - 2.239973514945138) / 0.6527240855058805;
+		data[3] = (row[3] - 1.007094211123723) / 0.09043758661115839;
+		data[4] = (row[4] - 10.936152099886492) / 3.8735682630465176;
+		data[5] = row[5];
+		data[6] = row[6];
+		data[7] = row[7];
+		data[8] = row[8];
+		data[9] = row[9];
+		data[10] = row[10];
+		data[11] = row[11];
+		data[12] = row[12];
+		data[13] = row[13];
+    }
+
+    @Override
+    public double predictData(double[] data, double[] params) {
+        return score(data, params == null ? DEFAULT_PARAMS : params);
+    }
+
     public static double score(double[] input, double[] params) {
         double var0;
         if (input[0] <= -1.1051058769226074) {
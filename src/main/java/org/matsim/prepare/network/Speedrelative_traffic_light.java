@@ -44,6 +44,29 @@ public final class Speedrelative_traffic_light implements FeatureRegressor {
     
         return score(data, params);
     }
+    @Override
+    public void getData(double[] row, double[] data) {
+		data[0] = (row[0] - 123.77791684254963) / 86.92545218615102;
+		data[1] = (row[1] - 13.195084423807513) / 2.5553097705928556;
+		data[2] = (row[2] - 2.4094554664415364) / 0.6618814394678828;
+		data[3] = (row[3] - 1.9147319544111439) / 0.9803419977659901;
+		data[4] = (row[4] - 13.871042634022794) / 4.3880523696095075;
+		data[5] = row[5];
+		data[6] = row[6];
+		data[7] = row[7];
+		data[8] = row[8];
+		data[9] = row[9];
+		data[10] = row[10];
+		data[11] = row[11];
+		data[12] = row[12];
+		data[13] = row[13];
+    }
+
+    @Override
+    public double predictData(double[] data, double[] params) {
+        return score(data, params == null ? DEFAULT_PARAMS : params);
+    }
+
     public static double score(double[] input, double[] params) {
         double var0;
         if (input[0] >= -0.12318505) {
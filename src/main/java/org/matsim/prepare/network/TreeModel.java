@@ -0,0 +1,184 @@
+package org.matsim.prepare.network;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ensemble of regression trees, which are stored in flat arrays and evaluated in a loop.
+ * This replaces the generated source code, whose methods are too large to be compiled by the JIT.
+ * Models are loaded from json files, which are created by {@code tree_model.py}.
+ */
+public final class TreeModel implements FeatureRegressor {
+
+	private static final Map<String, TreeModel> MODELS = new ConcurrentHashMap<>();
+
+	private final double[] mean;
+	private final double[] std;
+
+	/**
+	 * Index of the root node of each tree. Negative indices are leaves, where {@code ~idx} is the index in the leaf values.
+	 */
+	private final int[] roots;
+	private final int[] feature;
+	private final double[] threshold;
+
+	/**
+	 * Children of each node, at {@code 2 * n} if the condition is true and at {@code 2 * n + 1} otherwise.
+	 */
+	private final int[] children;
+
+	/**
+	 * Whether the split condition is {@code x >= t}, otherwise {@code x > t}.
+	 */
+	private final boolean inclusive;
+
+	/**
+	 * Leaf values, if params is true these are the default params that can be replaced.
+	 */
+	private final double[] values;
+	private final boolean params;
+
+	private final double base;
+	private final double scale;
+
+	private TreeModel(Spec spec) {
+		this.mean = spec.mean;
+		this.std = spec.std;
+		this.roots = spec.roots;
+		this.feature = spec.feature;
+		this.threshold = spec.threshold;
+		this.children = new int[2 * feature.length];
+		for (int i = 0; i < feature.length; i++) {
+			children[2 * i] = spec.yes[i];
+			children[2 * i + 1] = spec.no[i];
+		}
+		this.inclusive = ">=".equals(spec.op);
+		this.values = spec.values;
+		this.params = spec.params;
+		this.base = spec.base;
+		this.scale = spec.scale;
+
+		if (mean.length != FEATURES.size() || std.length != FEATURES.size())
+			throw new IllegalArgumentException("Model must use the features " + FEATURES);
+	}
+
+	/**
+	 * Get a model from the classpath, e.g. {@code Speedrelative_priority}. Models are only loaded once.
+	 */
+	public static TreeModel get(String name) {
+		return MODELS.computeIfAbsent(name, n -> {
+			try (InputStream in = TreeModel.class.getResourceAsStream("/network-models/" + n + ".json")) {
+				if (in == null)
+					throw new IllegalArgumentException("Unknown model: " + n);
+
+				return read(in);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Read a model from json.
+	 */
+	public static TreeModel read(InputStream in) throws IOException {
+		return new TreeModel(new ObjectMapper().readValue(in, Spec.class));
+	}
+
+	/**
+	 * Default params, which can be modified and passed to {@link #predict(Object2DoubleMap, double[])}.
+	 */
+	public double[] getDefaultParams() {
+		if (!params)
+			throw new UnsupportedOperationException("Model has no params");
+
+		return values.clone();
+	}
+
+	@Override
+	public double predict(Object2DoubleMap<String> ft) {
+		return predict(ft, null);
+	}
+
+	@Override
+	public double predict(Object2DoubleMap<String> ft, double[] params) {
+		double[] row = new double[FEATURES.size()];
+		for (int i = 0; i < row.length; i++) {
+			row[i] = ft.getDouble(FEATURES.get(i));
+		}
+
+		return predict(row, new double[row.length], params);
+	}
+
+	@Override
+	public double[] getData(Object2DoubleMap<String> ft) {
+		double[] data = new double[FEATURES.size()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (ft.getDouble(FEATURES.get(i)) - mean[i]) / std[i];
+		}
+		return data;
+	}
+
+	@Override
+	public void getData(double[] row, double[] data) {
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (row[i] - mean[i]) / std[i];
+		}
+	}
+
+	@Override
+	public double predictData(double[] data, double[] params) {
+		double[] v = params != null && this.params ? params : values;
+		double sum = inclusive ? sumInclusive(data, v) : sumExclusive(data, v);
+		return base + sum * scale;
+	}
+
+	private double sumInclusive(double[] input, double[] v) {
+		double sum = 0;
+		for (int root : roots) {
+			int n = root;
+			while (n >= 0)
+				n = children[2 * n + (input[feature[n]] >= threshold[n] ? 0 : 1)];
+
+			sum += v[~n];
+		}
+		return sum;
+	}
+
+	private double sumExclusive(double[] input, double[] v) {
+		double sum = 0;
+		for (int root : roots) {
+			int n = root;
+			while (n >= 0)
+				n = children[2 * n + (input[feature[n]] > threshold[n] ? 0 : 1)];
+
+			sum += v[~n];
+		}
+		return sum;
+	}
+
+	/**
+	 * Json representation of the model.
+	 */
+	private static final class Spec {
+		public double[] mean;
+		public double[] std;
+		public int[] roots;
+		public int[] feature;
+		public double[] threshold;
+		public int[] yes;
+		public int[] no;
+		public String op;
+		public double[] values;
+		public boolean params;
+		public double base;
+		public double scale;
+	}
+
+}
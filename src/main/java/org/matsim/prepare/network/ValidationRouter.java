@@ -0,0 +1,167 @@
+package org.matsim.prepare.network;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.application.analysis.traffic.traveltime.SampleValidationRoutes;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.speedy.SpeedyDijkstra;
+import org.matsim.core.router.speedy.SpeedyGraph;
+import org.matsim.core.router.speedy.SpeedyGraphBuilder;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Routes validation pairs with the current freespeed of the network, using one router per thread.
+ * Routes of a previous call are reused if they are guaranteed to be still the shortest ones,
+ * i.e. none of their links changed, and no link in the network became faster.
+ * Alternatively, routes can be calculated with a speed overlay, without modifying the network.
+ */
+final class ValidationRouter {
+
+	private final Network network;
+	private final List<SampleValidationRoutes.FromToNodes> pairs;
+	private final SpeedyGraph graph;
+	private final ForkJoinPool pool;
+	private final int threads;
+
+	/**
+	 * Freespeed of each link (by id index) at the last call.
+	 */
+	private final double[] speeds;
+	private final Route[] routes;
+
+	ValidationRouter(Network network, List<SampleValidationRoutes.FromToNodes> pairs, int threads) {
+		this.network = network;
+		this.pairs = pairs;
+		this.threads = threads;
+		this.graph = SpeedyGraphBuilder.build(network);
+		this.pool = new ForkJoinPool(threads);
+		this.speeds = new double[Id.getNumberOfIds(Link.class)];
+		this.routes = new Route[pairs.size()];
+
+		Arrays.fill(speeds, Double.NaN);
+	}
+
+	/**
+	 * Validation pairs in the order of the routes.
+	 */
+	List<SampleValidationRoutes.FromToNodes> getPairs() {
+		return pairs;
+	}
+
+	/**
+	 * Calculate routes for all pairs, the network must not be modified while routing.
+	 *
+	 * @return route for each pair, the array is reused by subsequent calls
+	 */
+	synchronized Route[] route() {
+
+		BitSet changed = new BitSet(speeds.length);
+		boolean faster = false;
+
+		for (Link link : network.getLinks().values()) {
+			int idx = link.getId().index();
+			double v = link.getFreespeed();
+			if (v != speeds[idx]) {
+				changed.set(idx);
+				// also true for the first call, where speeds are NaN
+				faster |= !(v < speeds[idx]);
+				speeds[idx] = v;
+			}
+		}
+
+		IntList todo = new IntArrayList();
+		for (int i = 0; i < routes.length; i++) {
+			if (faster || routes[i] == null || routes[i].touches(changed))
+				todo.add(i);
+		}
+
+		submit(todo, new FreeSpeedTravelTime(), routes).forEach(ForkJoinTask::join);
+
+		return routes;
+	}
+
+	/**
+	 * Calculate routes for all pairs with the given speeds instead of the ones in the network.
+	 * This method does not modify the network or the cached routes and can be called concurrently.
+	 *
+	 * @param overlays freespeed of each link, indexed by the id index. All overlays are routed in parallel.
+	 * @return routes for each overlay and pair
+	 */
+	Route[][] route(double[][] overlays) {
+
+		IntList all = new IntArrayList(pairs.size());
+		for (int i = 0; i < pairs.size(); i++) {
+			all.add(i);
+		}
+
+		Route[][] result = new Route[overlays.length][pairs.size()];
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+		for (int i = 0; i < overlays.length; i++) {
+			double[] overlay = overlays[i];
+			TravelTime tt = (link, time, person, vehicle) -> link.getLength() / overlay[link.getId().index()];
+			tasks.addAll(submit(all, tt, result[i]));
+		}
+
+		tasks.forEach(ForkJoinTask::join);
+		return result;
+	}
+
+	/**
+	 * Submit routing tasks for the given pairs, which store the routes in result.
+	 */
+	private List<ForkJoinTask<?>> submit(IntList todo, TravelTime tt, Route[] result) {
+
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		int chunk = Math.max(1, (todo.size() + threads - 1) / threads);
+
+		for (int from = 0; from < todo.size(); from += chunk) {
+			IntList part = todo.subList(from, Math.min(todo.size(), from + chunk));
+			tasks.add(pool.submit(() -> route(part, tt, result)));
+		}
+
+		return tasks;
+	}
+
+	private void route(IntList part, TravelTime tt, Route[] result) {
+
+		LeastCostPathCalculator router = new SpeedyDijkstra(graph, tt, new OnlyTimeDependentTravelDisutility(tt));
+
+		for (int i : part) {
+			SampleValidationRoutes.FromToNodes r = pairs.get(i);
+
+			Node fromNode = network.getNodes().get(r.fromNode());
+			Node toNode = network.getNodes().get(r.toNode());
+			LeastCostPathCalculator.Path path = router.calcLeastCostPath(fromNode, toNode, 0, null, null);
+
+			double distance = path.links.stream().mapToDouble(Link::getLength).sum();
+
+			result[i] = new Route(path.links, path.travelTime, distance);
+		}
+	}
+
+	record Route(List<Link> links, double travelTime, double distance) {
+
+		boolean touches(BitSet changed) {
+			for (Link link : links) {
+				if (changed.get(link.getId().index()))
+					return true;
+			}
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.matsim.prepare.opt;
+
+import org.optaplanner.core.api.score.director.ScoreDirector;
+import org.optaplanner.core.impl.heuristic.selector.move.factory.MoveIteratorFactory;
+import org.optaplanner.core.impl.score.director.incremental.IncrementalScoreDirector;
+
+import java.util.*;
+
+/**
+ * Select persons that affect count indices with a high error, and switch them to their best plan.
+ * Count indices are sampled proportional to their absolute error.
+ */
+public class CountErrorMoveSelector implements MoveIteratorFactory<PlanAssignmentProblem, LargeChangeMove> {
+
+	/**
+	 * Inverted index from count index to persons, which is only built once per working solution.
+	 */
+	private volatile Index index;
+
+	@Override
+	public long getSize(ScoreDirector<PlanAssignmentProblem> scoreDirector) {
+		return scoreDirector.getWorkingSolution().getPersons().size() / 8;
+	}
+
+	@Override
+	public Iterator<LargeChangeMove> createOriginalMoveIterator(ScoreDirector<PlanAssignmentProblem> scoreDirector) {
+		return createRandomMoveIterator(scoreDirector, new Random(0));
+	}
+
+	@Override
+	public Iterator<LargeChangeMove> createRandomMoveIterator(ScoreDirector<PlanAssignmentProblem> scoreDirector, Random workingRandom) {
+
+		PlanAssignmentProblem solution = scoreDirector.getWorkingSolution();
+
+		Index idx = index;
+		if (idx == null || idx.solution != solution) {
+			idx = new Index(solution);
+			index = idx;
+		}
+
+		ScoreCalculator calc;
+		if (scoreDirector instanceof IncrementalScoreDirector<?, ?> director &&
+				director.getIncrementalScoreCalculator() instanceof ScoreCalculator c) {
+			calc = c;
+		} else {
+			calc = new ScoreCalculator();
+			calc.resetWorkingSolution(solution);
+		}
+
+		return new It(solution.getMaxK(), solution.getPersons(), idx, calc, workingRandom);
+	}
+
+	/**
+	 * Persons affecting each count index, in compressed sparse row format.
+	 */
+	private static final class Index {
+
+		private final PlanAssignmentProblem solution;
+		private final int[] offsets;
+		private final int[] persons;
+
+		Index(PlanAssignmentProblem solution) {
+
+			this.solution = solution;
+
+			List<PlanPerson> list = solution.getPersons();
+			int n = solution.counts.length;
+
+			// Last person that was added for each count index, to avoid duplicates if multiple plans have the same index
+			int[] last = new int[n];
+			Arrays.fill(last, -1);
+
+			int[] size = new int[n];
+			for (int i = 0; i < list.size(); i++) {
+				for (int k = 0; k < solution.getMaxK(); k++) {
+					int p = i;
+					list.get(i).forEachCount(k, key -> {
+						if (last[key] != p) {
+							last[key] = p;
+							size[key]++;
+						}
+					});
+				}
+			}
+
+			offsets = new int[n + 1];
+			for (int i = 0; i < n; i++) {
+				offsets[i + 1] = offsets[i] + size[i];
+			}
+
+			persons = new int[offsets[n]];
+			int[] pos = Arrays.copyOf(offsets, n);
+			Arrays.fill(last, -1);
+
+			for (int i = 0; i < list.size(); i++) {
+				for (int k = 0; k < solution.getMaxK(); k++) {
+					int p = i;
+					list.get(i).forEachCount(k, key -> {
+						if (last[key] != p) {
+							last[key] = p;
+							persons[pos[key]++] = p;
+						}
+					});
+				}
+			}
+		}
+	}
+
+	private static final class It implements Iterator<LargeChangeMove> {
+
+		private final int maxK;
+		private final List<PlanPerson> list;
+		private final Index index;
+		private final ScoreCalculator calc;
+		private final Random random;
+
+		/**
+		 * Count indices with error and affected persons, and the cumulative error used for sampling.
+		 */
+		private final int[] candidates;
+		private final double[] cumulative;
+
+		private int done = 0;
+
+		It(int maxK, List<PlanPerson> list, Index index, ScoreCalculator calc, Random random) {
+			this.maxK = maxK;
+			this.list = list;
+			this.index = index;
+			this.calc = calc;
+			this.random = random;
+
+			int n = index.offsets.length - 1;
+			int[] c = new int[n];
+			double[] cum = new double[n];
+
+			int size = 0;
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				int err = calc.absDiff(i);
+				if (err > 0 && index.offsets[i + 1] > index.offsets[i]) {
+					sum += err;
+					c[size] = i;
+					cum[size++] = sum;
+				}
+			}
+
+			this.candidates = Arrays.copyOf(c, size);
+			this.cumulative = Arrays.copyOf(cum, size);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return maxK > 1 && candidates.length > 0 && done < list.size() / 8;
+		}
+
+		@Override
+		public LargeChangeMove next() {
+
+			done++;
+
+			double r = random.nextDouble() * cumulative[cumulative.length - 1];
+			int pos = Arrays.binarySearch(cumulative, r);
+			if (pos < 0)
+				pos = -pos - 1;
+
+			int idx = candidates[Math.min(pos, candidates.length - 1)];
+
+			int from = index.offsets[idx];
+			int to = index.offsets[idx + 1];
+			PlanPerson person = list.get(index.persons[from + random.nextInt(to - from)]);
+
+			// Choose plan with the best improvement, that is not the current one
+			int best = -1;
+			double bestDelta = Double.POSITIVE_INFINITY;
+			for (int k = 0; k < maxK; k++) {
+				if (k == person.getK())
+					continue;
+
+				double delta = calc.deltaChange(person, k);
+				if (delta < bestDelta) {
+					bestDelta = delta;
+					best = k;
+				}
+			}
+
+			return new LargeChangeMove(List.of(person), new int[]{best});
+		}
+	}
+
+}
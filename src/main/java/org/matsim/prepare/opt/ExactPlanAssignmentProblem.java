@@ -0,0 +1,87 @@
+package org.matsim.prepare.opt;
+
+import org.optaplanner.core.api.domain.solution.PlanningEntityCollectionProperty;
+import org.optaplanner.core.api.domain.solution.PlanningScore;
+import org.optaplanner.core.api.domain.solution.PlanningSolution;
+import org.optaplanner.core.api.domain.solution.cloner.SolutionCloner;
+import org.optaplanner.core.api.domain.valuerange.CountableValueRange;
+import org.optaplanner.core.api.domain.valuerange.ValueRangeFactory;
+import org.optaplanner.core.api.domain.valuerange.ValueRangeProvider;
+import org.optaplanner.core.api.score.buildin.simplelong.SimpleLongScore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Variant of {@link PlanAssignmentProblem} with an integer score, calculated by the {@link ExactScoreCalculator}.
+ */
+@PlanningSolution(solutionCloner = ExactPlanAssignmentProblem.Cloner.class)
+public final class ExactPlanAssignmentProblem implements Iterable<PlanPerson> {
+
+	final int[] counts;
+	final int[] base;
+	final ErrorMetric metric;
+	private final int maxK;
+	@PlanningEntityCollectionProperty
+	private final List<PlanPerson> persons;
+	@PlanningScore
+	private SimpleLongScore score;
+
+	/**
+	 * Create the exact variant of a problem. Persons are shared with the original problem.
+	 */
+	public ExactPlanAssignmentProblem(PlanAssignmentProblem problem) {
+		this(problem.getMaxK(), problem.metric, problem.getPersons(), problem.counts, problem.base, SimpleLongScore.ofUninitialized(-1, 0));
+	}
+
+	private ExactPlanAssignmentProblem(int maxK, ErrorMetric metric, List<PlanPerson> persons, int[] counts, int[] base, SimpleLongScore score) {
+		this.maxK = maxK;
+		this.metric = metric;
+		this.persons = persons;
+		this.counts = counts;
+		this.base = base;
+		this.score = score;
+	}
+
+	public int getMaxK() {
+		return maxK;
+	}
+
+	public List<PlanPerson> getPersons() {
+		return persons;
+	}
+
+	public SimpleLongScore getScore() {
+		return score;
+	}
+
+	public void setScore(SimpleLongScore score) {
+		this.score = score;
+	}
+
+	@ValueRangeProvider(id = "numPlans")
+	public CountableValueRange<Integer> getPlanRange() {
+		return ValueRangeFactory.createIntValueRange(0, maxK);
+	}
+
+	@Override
+	public Iterator<PlanPerson> iterator() {
+		return persons.iterator();
+	}
+
+	/**
+	 * Create a clone of a solution.
+	 */
+	public static final class Cloner implements SolutionCloner<ExactPlanAssignmentProblem> {
+		@Override
+		public ExactPlanAssignmentProblem cloneSolution(ExactPlanAssignmentProblem original) {
+			List<PlanPerson> personsCopy = new ArrayList<>();
+			for (PlanPerson person : original.persons) {
+				personsCopy.add(person.copy());
+			}
+			return new ExactPlanAssignmentProblem(original.maxK, original.metric, personsCopy, original.counts, original.base, original.score);
+		}
+	}
+
+}
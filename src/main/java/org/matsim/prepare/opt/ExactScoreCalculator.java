@@ -0,0 +1,107 @@
+package org.matsim.prepare.opt;
+
+import org.apache.commons.math3.util.FastMath;
+import org.optaplanner.core.api.score.buildin.simplelong.SimpleLongScore;
+import org.optaplanner.core.api.score.calculator.IncrementalScoreCalculator;
+
+/**
+ * Score calculator using only integer arithmetic, so that incremental and full calculation always give the same score.
+ * The absolute error is exact, other metrics are rounded per count index to fixed point numbers with {@link #SCALE}.
+ */
+public final class ExactScoreCalculator implements IncrementalScoreCalculator<ExactPlanAssignmentProblem, SimpleLongScore> {
+
+	/**
+	 * Fixed point scale for non integer error metrics.
+	 */
+	static final long SCALE = 1_000_000;
+
+	private static final double C = 15.0;
+
+	private long error = 0;
+
+	private int[] counts;
+	private int[] observed;
+
+	private ErrorMetric metric;
+
+	/**
+	 * Sign of the current {@link #update(PlanPerson, int)}, the consumer is only allocated once.
+	 */
+	private int updateSign;
+	private final PlanPerson.EntryConsumer updateEntry = (key, value) -> updateEntry(key, updateSign * value);
+
+	/**
+	 * Error of one count index.
+	 */
+	static long error(ErrorMetric err, int count, int observed) {
+		return switch (err) {
+			case abs_error -> Math.abs(count - observed);
+			case log_error -> Math.round(FastMath.abs(Math.log((observed + C) / (count + C))) * SCALE);
+			case symmetric_percentage_error -> Math.round(FastMath.abs((double) (observed - count) / (observed + count + 2 * C) / 2) * SCALE);
+		};
+	}
+
+	@Override
+	public void resetWorkingSolution(ExactPlanAssignmentProblem problem) {
+
+		observed = problem.base != null ? problem.base.clone() : new int[problem.counts.length];
+		counts = problem.counts;
+		metric = problem.metric;
+
+		for (PlanPerson person : problem) {
+			person.addSelected(observed, 1);
+		}
+
+		error = 0;
+		for (int j = 0; j < counts.length; j++)
+			error += error(metric, counts[j], observed[j]);
+	}
+
+	@Override
+	public void beforeEntityAdded(Object entity) {
+	}
+
+	@Override
+	public void afterEntityAdded(Object entity) {
+	}
+
+	@Override
+	public void beforeVariableChanged(Object entity, String variableName) {
+		assert variableName.equals("k");
+		update((PlanPerson) entity, -1);
+	}
+
+	@Override
+	public void afterVariableChanged(Object entity, String variableName) {
+		assert variableName.equals("k");
+		update((PlanPerson) entity, 1);
+	}
+
+	/**
+	 * Add (sign = 1) or remove (sign = -1) the selected plan of a person.
+	 */
+	private void update(PlanPerson person, int sign) {
+		updateSign = sign;
+		person.forEachEntry(person.getK(), updateEntry);
+	}
+
+	private void updateEntry(int idx, int value) {
+		int old = observed[idx];
+		int update = observed[idx] += value;
+
+		error += error(metric, counts[idx], update) - error(metric, counts[idx], old);
+	}
+
+	@Override
+	public void beforeEntityRemoved(Object entity) {
+	}
+
+	@Override
+	public void afterEntityRemoved(Object entity) {
+	}
+
+	@Override
+	public SimpleLongScore calculateScore() {
+		return SimpleLongScore.of(-error);
+	}
+}
@@ -0,0 +1,216 @@
+package org.matsim.prepare.opt;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectSortedMap;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.optaplanner.core.api.score.buildin.simplebigdecimal.SimpleBigDecimalScore;
+import org.optaplanner.core.api.solver.SolverFactory;
+import org.optaplanner.core.config.solver.SolverConfig;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Solves the plan assignment problem with multiple independent solvers (islands) in parallel.
+ * Persons are partitioned by the count station they affect the most. Each island optimizes its persons, while the counts of all other persons are fixed.
+ * After each epoch, the best assignments of all islands are merged into the global solution, as long as they improve it.
+ */
+final class IslandSolver {
+
+	private final SolverConfig config;
+	private final int islands;
+	private final int hours;
+	private final Duration epoch;
+
+	/**
+	 * Create a new island solver.
+	 *
+	 * @param config  configuration for the solver of each island, should not use move threads
+	 * @param islands number of islands, which are solved in parallel
+	 * @param hours   number of hours per count station
+	 * @param epoch   time after which assignments are exchanged
+	 */
+	IslandSolver(SolverConfig config, int islands, int hours, Duration epoch) {
+		this.config = config;
+		this.islands = islands;
+		this.hours = hours;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Solve the problem. Assignments of the given problem will be modified.
+	 *
+	 * @param target    stop if this error has been reached, may be NaN
+	 * @param timeLimit maximum time for the optimization
+	 */
+	PlanAssignmentProblem solve(PlanAssignmentProblem problem, double target, Duration timeLimit) throws InterruptedException, ExecutionException {
+
+		List<List<PlanPerson>> partition = partition(problem);
+
+		for (int i = 0; i < partition.size(); i++) {
+			RunCountOptimization.log.info("Island {} with {} persons", i, partition.get(i).size());
+		}
+
+		ScoreCalculator calc = new ScoreCalculator();
+		calc.resetWorkingSolution(problem);
+
+		long start = System.currentTimeMillis();
+		long end = start + timeLimit.toMillis();
+		boolean reached = false;
+
+		ExecutorService executor = Executors.newFixedThreadPool(islands);
+
+		try {
+			for (int e = 0; System.currentTimeMillis() < end; e++) {
+
+				SimpleBigDecimalScore before = calc.calculateScore();
+
+				int[] observed = observed(problem);
+
+				// The last epoch must not exceed the time limit
+				Duration limit = Duration.ofMillis(Math.min(epoch.toMillis(), end - System.currentTimeMillis()));
+
+				List<Future<PlanAssignmentProblem>> futures = new ArrayList<>();
+				for (int i = 0; i < partition.size(); i++) {
+					List<PlanPerson> members = partition.get(i);
+					long seed = 31L * e + i;
+					futures.add(executor.submit(() -> solveIsland(problem, members, observed, seed, limit)));
+				}
+
+				for (int i = 0; i < partition.size(); i++) {
+					merge(calc, partition.get(i), futures.get(i).get());
+				}
+
+				SimpleBigDecimalScore score = calc.calculateScore();
+				double elapsed = (System.currentTimeMillis() - start) / 1000d;
+
+				RunCountOptimization.log.info("Epoch {} after {}s score: {}", e, elapsed, score);
+
+				if (!Double.isNaN(target) && -score.score().doubleValue() <= target) {
+					RunCountOptimization.log.info("Reached target error of {} after {}s", target, elapsed);
+					reached = true;
+					break;
+				}
+
+				if (score.compareTo(before) <= 0) {
+					RunCountOptimization.log.info("No improvement in epoch {}, stopping", e);
+					break;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		if (!reached && !Double.isNaN(target))
+			RunCountOptimization.log.info("Target error of {} was not reached", target);
+
+		problem.setScore(calc.calculateScore());
+		return problem;
+	}
+
+	/**
+	 * Partition persons by their main count station. Stations are distributed to islands, so that all islands have a similar number of persons.
+	 */
+	List<List<PlanPerson>> partition(PlanAssignmentProblem problem) {
+
+		Int2ObjectSortedMap<List<PlanPerson>> stations = new Int2ObjectAVLTreeMap<>();
+		for (PlanPerson person : problem.getPersons()) {
+			int count = person.getMainCount();
+			stations.computeIfAbsent(count < 0 ? -1 : count / hours, s -> new ArrayList<>()).add(person);
+		}
+
+		List<List<PlanPerson>> groups = new ArrayList<>(stations.values());
+
+		// Largest groups first, assign each to the smallest island
+		groups.sort(Comparator.<List<PlanPerson>>comparingInt(List::size).reversed());
+
+		List<List<PlanPerson>> result = new ArrayList<>();
+		for (int i = 0; i < islands; i++) {
+			result.add(new ArrayList<>());
+		}
+
+		for (List<PlanPerson> group : groups) {
+			List<PlanPerson> smallest = result.stream().min(Comparator.comparingInt(List::size)).orElseThrow();
+			smallest.addAll(group);
+		}
+
+		result.removeIf(List::isEmpty);
+		return result;
+	}
+
+	/**
+	 * Run the solver for one island, for at most the given time.
+	 */
+	private PlanAssignmentProblem solveIsland(PlanAssignmentProblem problem, List<PlanPerson> members, int[] observed, long seed, Duration limit) {
+
+		// Remove the contribution of this island from the observed counts
+		int[] base = observed.clone();
+		List<PlanPerson> copies = new ArrayList<>();
+		for (PlanPerson person : members) {
+			PlanPerson copy = person.copy();
+			copy.addSelected(base, -1);
+			copies.add(copy);
+		}
+
+		PlanAssignmentProblem island = new PlanAssignmentProblem(problem.getMaxK(), problem.metric, copies, problem.counts, base);
+
+		SolverConfig islandConfig = config.copyConfig()
+				.withRandomSeed(seed)
+				.withMoveThreadCount(SolverConfig.MOVE_THREAD_COUNT_NONE)
+				.withTerminationSpentLimit(limit);
+
+		return SolverFactory.<PlanAssignmentProblem>create(islandConfig).buildSolver().solve(island);
+	}
+
+	/**
+	 * Apply assignments of one island to the global solution, if they improve the score.
+	 */
+	private static void merge(ScoreCalculator calc, List<PlanPerson> members, PlanAssignmentProblem island) {
+
+		Map<Id<Person>, PlanPerson> solved = new HashMap<>();
+		for (PlanPerson person : island.getPersons()) {
+			solved.put(person.getId(), person);
+		}
+
+		SimpleBigDecimalScore before = calc.calculateScore();
+		Int2IntMap previous = new Int2IntOpenHashMap();
+
+		for (int i = 0; i < members.size(); i++) {
+			PlanPerson person = members.get(i);
+			int k = solved.get(person.getId()).getK();
+			if (k != person.getK()) {
+				previous.put(i, person.getK());
+				change(calc, person, k);
+			}
+		}
+
+		// Other islands may have changed in the meantime, then this island might not be an improvement
+		if (calc.calculateScore().compareTo(before) < 0) {
+			for (Int2IntMap.Entry e : previous.int2IntEntrySet()) {
+				change(calc, members.get(e.getIntKey()), e.getIntValue());
+			}
+		}
+	}
+
+	private static void change(ScoreCalculator calc, PlanPerson person, int k) {
+		calc.beforeVariableChanged(person, "k");
+		person.setK(k);
+		calc.afterVariableChanged(person, "k");
+	}
+
+	/**
+	 * Observed counts of the current assignment.
+	 */
+	private static int[] observed(PlanAssignmentProblem problem) {
+		int[] observed = new int[problem.counts.length];
+		for (PlanPerson person : problem) {
+			person.addSelected(observed, 1);
+		}
+		return observed;
+	}
+
+}
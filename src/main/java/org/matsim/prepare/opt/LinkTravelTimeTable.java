@@ -0,0 +1,68 @@
+package org.matsim.prepare.opt;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
+
+/**
+ * Congested link travel times per time bin, stored in one array indexed by the link id index.
+ */
+final class LinkTravelTimeTable {
+
+	private final int bins;
+	private final double binSize;
+	private final float[] times;
+
+	private LinkTravelTimeTable(int bins, double binSize, float[] times) {
+		this.bins = bins;
+		this.binSize = binSize;
+		this.times = times;
+	}
+
+	/**
+	 * Read travel times from events.
+	 */
+	static LinkTravelTimeTable fromEvents(Network network, String events, double binSize, double maxTime) {
+
+		TravelTimeCalculator.Builder builder = new TravelTimeCalculator.Builder(network);
+		builder.setCalculateLinkTravelTimes(true);
+		builder.setMaxTime((int) maxTime);
+		builder.setTimeslice((int) binSize);
+
+		TravelTimeCalculator calculator = builder.build();
+
+		EventsManager manager = EventsUtils.createEventsManager();
+		manager.addHandler(calculator);
+
+		manager.initProcessing();
+		EventsUtils.readEvents(manager, events);
+		manager.finishProcessing();
+
+		TravelTime tt = calculator.getLinkTravelTimes();
+
+		int bins = (int) Math.ceil(maxTime / binSize);
+		float[] times = new float[Id.getNumberOfIds(Link.class) * bins];
+
+		for (Link link : network.getLinks().values()) {
+			int offset = link.getId().index() * bins;
+			for (int i = 0; i < bins; i++) {
+				times[offset + i] = (float) tt.getLinkTravelTime(link, i * binSize + binSize / 2, null, null);
+			}
+		}
+
+		return new LinkTravelTimeTable(bins, binSize, times);
+	}
+
+	/**
+	 * Travel time when entering the link at a certain time. Times after the last bin use the last bin.
+	 */
+	double getTravelTime(Link link, double time) {
+		int bin = Math.min(bins - 1, Math.max(0, (int) (time / binSize)));
+		return times[link.getId().index() * bins + bin];
+	}
+
+}
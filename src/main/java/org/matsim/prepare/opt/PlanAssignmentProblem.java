@@ -1,5 +1,7 @@
 package org.matsim.prepare.opt;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import org.optaplanner.core.api.domain.solution.PlanningEntityCollectionProperty;
 import org.optaplanner.core.api.domain.solution.PlanningScore;
 import org.optaplanner.core.api.domain.solution.PlanningSolution;
@@ -11,6 +13,10 @@ import org.optaplanner.core.api.score.buildin.simplebigdecimal.SimpleBigDecimalS
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Planning problem containing all entities and information.
@@ -19,6 +25,10 @@ import java.util.*;
 public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 
 	final int[] counts;
+	/**
+	 * Fixed contribution to the observed counts from persons not part of this problem, may be null.
+	 */
+	final int[] base;
 	final ErrorMetric metric;
 	private final int maxK;
 	@PlanningEntityCollectionProperty
@@ -27,10 +37,18 @@ public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 	private SimpleBigDecimalScore score;
 
 	public PlanAssignmentProblem(int maxK, ErrorMetric metric, List<PlanPerson> persons, int[] counts) {
+		this(maxK, metric, persons, counts, null);
+	}
+
+	/**
+	 * Create a problem for a subset of persons, while the contribution of all other persons is fixed.
+	 */
+	PlanAssignmentProblem(int maxK, ErrorMetric metric, List<PlanPerson> persons, int[] counts, int[] base) {
 		this.maxK = maxK;
 		this.metric = metric;
 		this.persons = persons;
 		this.counts = counts;
+		this.base = base;
 		this.score = SimpleBigDecimalScore.ofUninitialized(-1, BigDecimal.ZERO);
 
 		persons.sort(new PlanPerson.DifficultyComparator());
@@ -38,11 +56,12 @@ public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 	}
 
 
-	private PlanAssignmentProblem(int maxK, ErrorMetric metric, List<PlanPerson> persons, int[] counts, SimpleBigDecimalScore score) {
+	private PlanAssignmentProblem(int maxK, ErrorMetric metric, List<PlanPerson> persons, int[] counts, int[] base, SimpleBigDecimalScore score) {
 		this.maxK = maxK;
 		this.metric = metric;
 		this.persons = persons;
 		this.counts = counts;
+		this.base = base;
 		this.score = score;
 	}
 
@@ -80,6 +99,13 @@ public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 	 * Iterative pre optimization using change plan exp beta logic.
 	 */
 	public void iterate(int n, double prob, double beta, double w) {
+		iterate(n, prob, beta, w, 0);
+	}
+
+	/**
+	 * Iterative pre optimization using change plan exp beta logic, with a given random seed.
+	 */
+	public void iterate(int n, double prob, double beta, double w, long seed) {
 
 		ScoreCalculator calc = new ScoreCalculator();
 		calc.resetWorkingSolution(this);
@@ -87,7 +113,7 @@ public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 
 		RunCountOptimization.log.info("Iterating {} iters with prob {} and beta {}", n, prob, beta);
 
-		SplittableRandom rnd = new SplittableRandom(0);
+		SplittableRandom rnd = new SplittableRandom(seed);
 
 		double step = prob / n;
 
@@ -128,6 +154,137 @@ public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 		}
 	}
 
+	/**
+	 * Iterative pre optimization using change plan exp beta logic, with persons split into shards that are processed in parallel.
+	 * Results only depend on the seed and number of threads.
+	 */
+	public void iterate(int n, double prob, double beta, double w, int threads, long seed) {
+
+		if (threads <= 1) {
+			iterate(n, prob, beta, w, seed);
+			return;
+		}
+
+		ScoreCalculator calc = new ScoreCalculator();
+		calc.resetWorkingSolution(this);
+		score = calc.calculateScore();
+
+		RunCountOptimization.log.info("Iterating {} iters with prob {} and beta {} using {} threads", n, prob, beta, threads);
+
+		// More shards than threads for better load balancing, persons are sorted by their impact
+		int numShards = threads * 4;
+		int shardSize = (persons.size() + numShards - 1) / numShards;
+
+		SplittableRandom rnd = new SplittableRandom(seed);
+		List<Shard> shards = new ArrayList<>();
+		for (int i = 0; i < numShards; i++) {
+			int from = Math.min(persons.size(), i * shardSize);
+			int to = Math.min(persons.size(), from + shardSize);
+			shards.add(new Shard(persons.subList(from, to), rnd.split()));
+		}
+
+		double step = prob / n;
+
+		double best = score.score().doubleValue();
+		int noBest = 0;
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+			for (int i = 0; i < n; i++) {
+
+				score = calc.calculateScore();
+
+				if (i % 100 == 0)
+					RunCountOptimization.log.info("Iteration {} score: {}", i, score);
+
+				if (score.score().doubleValue() >= best) {
+					best = score.score().doubleValue();
+					noBest = 0;
+				} else {
+					noBest++;
+				}
+
+				if (noBest >= 30) {
+					RunCountOptimization.log.info("Stopping after {} with score: {}", i, score);
+					break;
+				}
+
+				double p = prob - step * i;
+				double b = beta - (beta / n) * i;
+
+				// Observed counts are only read while the shards are processed
+				for (Future<?> f : pool.invokeAll(shards.stream().map(s -> (Callable<Void>) () -> s.sweep(calc, p, b, w)).toList())) {
+					f.get();
+				}
+
+				// Apply changed plans incrementally, always in the same order
+				for (Shard shard : shards) {
+					shard.apply(calc);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		calc.resetWorkingSolution(this);
+		score = calc.calculateScore();
+	}
+
+	/**
+	 * Subset of persons that is processed by one task.
+	 */
+	private static final class Shard {
+
+		private final List<PlanPerson> persons;
+		private final SplittableRandom rnd;
+
+		/**
+		 * Index of persons with changed plan and their new plan.
+		 */
+		private final IntList changed = new IntArrayList();
+		private final IntList newK = new IntArrayList();
+
+		Shard(List<PlanPerson> persons, SplittableRandom rnd) {
+			this.persons = persons;
+			this.rnd = rnd;
+		}
+
+		Void sweep(ScoreCalculator calc, double p, double b, double w) {
+
+			changed.clear();
+			newK.clear();
+
+			for (int i = 0; i < persons.size(); i++) {
+				PlanPerson person = persons.get(i);
+				if (rnd.nextDouble() < p) {
+					person.setScore(calc);
+					int k = person.changePlanExpBeta(b, w, rnd);
+					if (k != person.getK()) {
+						changed.add(i);
+						newK.add(k);
+					}
+				}
+			}
+
+			return null;
+		}
+
+		void apply(ScoreCalculator calc) {
+			for (int i = 0; i < changed.size(); i++) {
+				PlanPerson person = persons.get(changed.getInt(i));
+				calc.beforeVariableChanged(person, "k");
+				person.setK(newK.getInt(i));
+				calc.afterVariableChanged(person, "k");
+			}
+		}
+	}
+
 	/**
 	 * Create a clone of a solution.
 	 */
@@ -138,7 +295,7 @@ public final class PlanAssignmentProblem implements Iterable<PlanPerson> {
 			for (PlanPerson person : original.persons) {
 				personsCopy.add(person.copy());
 			}
-			return new PlanAssignmentProblem(original.maxK, original.metric, personsCopy, original.counts, original.score);
+			return new PlanAssignmentProblem(original.maxK, original.metric, personsCopy, original.counts, original.base, original.score);
 		}
 	}
 
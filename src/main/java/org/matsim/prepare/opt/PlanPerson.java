@@ -2,6 +2,7 @@ package org.matsim.prepare.opt;
 
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntMaps;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.optaplanner.core.api.domain.entity.PlanningEntity;
@@ -11,6 +12,7 @@ import org.optaplanner.core.api.domain.variable.PlanningVariable;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
 
 /**
  * Entity representing a person.
@@ -38,10 +40,20 @@ public final class PlanPerson {
 	private Integer k;
 
 	/**
-	 * Plans and their count increment.
+	 * Plans and their count increment. Null if plans are held in a {@link PlanStore}.
 	 */
 	private final Int2IntMap[] plans;
 
+	/**
+	 * Compact plan storage, only used if {@link #plans} is null.
+	 */
+	final PlanStore store;
+
+	/**
+	 * Index of this person within the {@link #store}.
+	 */
+	final int idx;
+
 	/**
 	 * Scores of each plan.
 	 */
@@ -56,6 +68,8 @@ public final class PlanPerson {
 		this.id = id;
 		this.offset = offset;
 		this.plans = plans;
+		this.store = null;
+		this.idx = -1;
 		this.k = 0;
 
 		int max = 0;
@@ -68,14 +82,41 @@ public final class PlanPerson {
 		this.maxImpact = max;
 	}
 
+	/**
+	 * Create a person whose plans are stored in a {@link PlanStore}.
+	 */
+	public PlanPerson(Id<Person> id, int offset, PlanStore store, int idx) {
+		this.id = id;
+		this.offset = offset;
+		this.plans = null;
+		this.store = store;
+		this.idx = idx;
+		this.k = 0;
+
+		int max = 0;
+		for (int i = 0; i < store.maxK; i++) {
+			int sum = 0;
+			for (int j = store.start(idx, i); j < store.end(idx, i); j++) {
+				sum += store.values[j];
+			}
+			max = Math.max(max, sum);
+		}
+		this.scores = new double[store.maxK];
+		Arrays.fill(scores, Float.NaN);
+
+		this.maxImpact = max;
+	}
+
 	/**
 	 * Constructor for cloning.
 	 */
-	private PlanPerson(Integer k, Id<Person> id, int offset, Int2IntMap[] plans, double[] scores, int maxImpact) {
+	private PlanPerson(Integer k, Id<Person> id, int offset, Int2IntMap[] plans, PlanStore store, int idx, double[] scores, int maxImpact) {
 		this.k = k;
 		this.id = id;
 		this.offset = offset;
 		this.plans = plans;
+		this.store = store;
+		this.idx = idx;
 		this.scores = scores;
 		this.maxImpact = maxImpact;
 	}
@@ -92,14 +133,10 @@ public final class PlanPerson {
 	}
 
 	/**
-	 * Counts of selected maps.
+	 * Whether plans of this person are held in a {@link PlanStore}.
 	 */
-	public Int2IntMap selected() {
-		return plans[k];
-	}
-
-	public Int2IntMap get(int idx) {
-		return plans[idx];
+	public boolean isCompact() {
+		return plans == null;
 	}
 
 	public void setK(int k) {
@@ -110,20 +147,66 @@ public final class PlanPerson {
 		return k;
 	}
 
-	public void setScore(ScoreCalculator calc) {
+	/**
+	 * Call the consumer with count index and increment of each entry of plan k.
+	 * This is the only place that needs to distinguish between compact and map based plans.
+	 */
+	void forEachEntry(int k, EntryConsumer consumer) {
+		if (plans == null) {
+			int end = store.end(idx, k);
+			for (int j = store.start(idx, k); j < end; j++) {
+				consumer.accept(store.keys[j], store.values[j]);
+			}
+		} else {
+			for (Int2IntMap.Entry e : plans[k].int2IntEntrySet()) {
+				consumer.accept(e.getIntKey(), e.getIntValue());
+			}
+		}
+	}
 
+	/**
+	 * Add the counts of the selected plan, multiplied by sign, to an array of observed counts.
+	 */
+	void addSelected(int[] observed, int sign) {
+		forEachEntry(k, (key, value) -> observed[key] += sign * value);
+	}
 
-		for (int i = 0; i < plans.length; i++) {
+	/**
+	 * Call the consumer for each count index affected by plan k.
+	 */
+	void forEachCount(int k, IntConsumer consumer) {
+		forEachEntry(k, (key, value) -> consumer.accept(key));
+	}
 
-			double score = 0;
+	/**
+	 * Count index with the highest increment over all plans, or -1 if no count is affected.
+	 */
+	int getMainCount() {
 
-			Int2IntMap p = plans[i];
+		Int2IntMap total = new Int2IntOpenHashMap();
+		for (int i = 0; i < scores.length; i++) {
+			forEachEntry(i, (key, value) -> total.merge(key, value, Integer::sum));
+		}
 
-			for (Int2IntMap.Entry e : p.int2IntEntrySet()) {
-				score += calc.scoreEntry(e);
+		int best = -1;
+		int max = 0;
+		for (Int2IntMap.Entry e : total.int2IntEntrySet()) {
+			if (e.getIntValue() > max || (e.getIntValue() == max && e.getIntKey() < best)) {
+				best = e.getIntKey();
+				max = e.getIntValue();
 			}
+		}
+
+		return best;
+	}
+
+	public void setScore(ScoreCalculator calc) {
 
-			scores[i] = score;
+		double[] score = new double[1];
+		for (int i = 0; i < scores.length; i++) {
+			score[0] = 0;
+			forEachEntry(i, (key, value) -> score[0] += calc.scoreEntry(key, value));
+			scores[i] = score[0];
 		}
 	}
 
@@ -156,7 +239,21 @@ public final class PlanPerson {
 	}
 
 	PlanPerson copy() {
-		return new PlanPerson(k, id, offset, plans, scores, maxImpact);
+		return new PlanPerson(k, id, offset, plans, store, idx, scores, maxImpact);
+	}
+
+	/**
+	 * Consumer of the entries of a plan.
+	 */
+	@FunctionalInterface
+	interface EntryConsumer {
+
+		/**
+		 * @param key   count index
+		 * @param value count increment
+		 */
+		void accept(int key, int value);
+
 	}
 
 	/**
@@ -0,0 +1,111 @@
+package org.matsim.prepare.opt;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Compact storage of all plans in compressed sparse row format.
+ * The count increments of plan {@code k} of person {@code i} are stored in {@link #keys} and {@link #values}
+ * between {@code offsets[i * maxK + k]} (inclusive) and {@code offsets[i * maxK + k + 1]} (exclusive).
+ */
+public final class PlanStore {
+
+	/**
+	 * Number of plans per person.
+	 */
+	final int maxK;
+
+	/**
+	 * Start of each plan in the key and value array, with one additional entry at the end.
+	 */
+	final int[] offsets;
+
+	/**
+	 * Count indices, sorted ascending within each plan.
+	 */
+	final int[] keys;
+
+	/**
+	 * Count increments.
+	 */
+	final int[] values;
+
+	private PlanStore(int maxK, int[] offsets, int[] keys, int[] values) {
+		this.maxK = maxK;
+		this.offsets = offsets;
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * Number of persons in this store.
+	 */
+	public int size() {
+		return (offsets.length - 1) / maxK;
+	}
+
+	/**
+	 * Start index of a plan in {@link #keys} and {@link #values}.
+	 */
+	int start(int idx, int k) {
+		return offsets[idx * maxK + k];
+	}
+
+	/**
+	 * End index (exclusive) of a plan in {@link #keys} and {@link #values}.
+	 */
+	int end(int idx, int k) {
+		return offsets[idx * maxK + k + 1];
+	}
+
+	/**
+	 * Builder to add plans of persons one after another.
+	 */
+	public static final class Builder {
+
+		private final int maxK;
+		private final IntArrayList offsets = new IntArrayList();
+		private final IntArrayList keys = new IntArrayList();
+		private final IntArrayList values = new IntArrayList();
+
+		public Builder(int maxK) {
+			this.maxK = maxK;
+			offsets.add(0);
+		}
+
+		/**
+		 * Add the plans of one person.
+		 *
+		 * @return index of the person within the store
+		 */
+		public int add(Int2IntMap[] plans) {
+
+			if (plans.length != maxK)
+				throw new IllegalArgumentException("Expected %d plans, got %d".formatted(maxK, plans.length));
+
+			int idx = (offsets.size() - 1) / maxK;
+
+			for (Int2IntMap plan : plans) {
+
+				int[] sorted = plan.keySet().toIntArray();
+				Arrays.sort(sorted);
+
+				for (int key : sorted) {
+					keys.add(key);
+					values.add(plan.get(key));
+				}
+
+				offsets.add(keys.size());
+			}
+
+			return idx;
+		}
+
+		public PlanStore build() {
+			return new PlanStore(maxK, offsets.toIntArray(), keys.toIntArray(), values.toIntArray());
+		}
+	}
+
+}
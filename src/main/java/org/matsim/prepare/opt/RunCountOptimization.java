@@ -14,20 +14,27 @@ import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CsvOptions;
-import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
 import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.counts.Count;
 import org.matsim.counts.Counts;
 import org.matsim.counts.MatsimCountsReader;
 import org.matsim.counts.Volume;
+import org.matsim.prepare.NetworkSnapshot;
 import org.matsim.prepare.RunOpenBerlinCalibration;
 import org.optaplanner.core.api.solver.Solver;
 import org.optaplanner.core.api.solver.SolverFactory;
+import org.optaplanner.core.config.solver.EnvironmentMode;
+import org.optaplanner.core.config.solver.SolverConfig;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 @CommandLine.Command(name = "run-count-opt", description = "Select plans to match counts data")
@@ -61,6 +68,42 @@ public class RunCountOptimization implements MATSimAppCommand {
 	@CommandLine.Option(names = "--k", description = "Number of plans to use from each agent", defaultValue = "5")
 	private int maxK;
 
+	@CommandLine.Option(names = "--compact-plans", description = "Store plans in flat arrays instead of hash maps.", defaultValue = "true", negatable = true)
+	private boolean compactPlans;
+
+	@CommandLine.Option(names = "--threads", description = "Number of threads for reading the population and the pre optimization", defaultValue = "1")
+	private int threads;
+
+	@CommandLine.Option(names = "--seed", description = "Random seed for the pre optimization", defaultValue = "0")
+	private long seed;
+
+	@CommandLine.Option(names = "--travel-time", description = "Travel times used to determine when count stations are passed: ${COMPLETION-CANDIDATES}", defaultValue = "freespeed")
+	private TravelTimeMode travelTimeMode;
+
+	@CommandLine.Option(names = "--events", description = "Events of the run, needed for congested travel times.")
+	private Path events;
+
+	@CommandLine.Option(names = "--islands", description = "Number of islands solved in parallel, 0 uses a single solver.", defaultValue = "0")
+	private int islands;
+
+	@CommandLine.Option(names = "--island-config", description = "Solver config used for each island, uses the default island config if not given.")
+	private Path islandConfig;
+
+	@CommandLine.Option(names = "--island-epoch", description = "Seconds after which islands exchange their assignments.", defaultValue = "300")
+	private long islandEpoch;
+
+	@CommandLine.Option(names = "--time-limit", description = "Maximum time for the island solver in minutes.", defaultValue = "2880")
+	private long timeLimit;
+
+	@CommandLine.Option(names = "--target-error", description = "Report the time when this error has been reached (and stop the island solver).", defaultValue = "NaN")
+	private double targetError;
+
+	@CommandLine.Option(names = "--exact-score", description = "Use integer (fixed point for non absolute metrics) score calculation.", defaultValue = "false")
+	private boolean exactScore;
+
+	@CommandLine.Option(names = "--environment-mode", description = "Overwrite environment mode of the solver, e.g. FULL_ASSERT.")
+	private EnvironmentMode environmentMode;
+
 	@CommandLine.Mixin
 	private CsvOptions csv;
 
@@ -68,6 +111,11 @@ public class RunCountOptimization implements MATSimAppCommand {
 
 	private PlanAssignmentProblem problem;
 
+	/**
+	 * Congested travel times, null if free speed travel times are used.
+	 */
+	private LinkTravelTimeTable travelTimes;
+
 	public static void main(String[] args) {
 		new RunCountOptimization().execute(args);
 	}
@@ -75,31 +123,25 @@ public class RunCountOptimization implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
+		if (exactScore && islands > 0)
+			throw new IllegalArgumentException("--exact-score can not be combined with --islands, islands always use the default score calculation");
+
 		Counts<Link> linkCounts = new Counts<>();
 
 		new MatsimCountsReader(linkCounts).readFile(countsPath.toString());
 
-		int[] counts = new int[linkCounts.getCounts().size() * H];
+		int[] counts = mapCounts(linkCounts);
 
-		linkMapping = new Object2IntLinkedOpenHashMap<>();
+		Network network = NetworkSnapshot.readNetwork(networkPath.toString());
 
-		int k = 0;
-		for (Count<Link> value : linkCounts.getCounts().values()) {
-			Map<Integer, Volume> volumes = value.getVolumes();
-			for (int i = 0; i < H; i++) {
-				if (volumes.containsKey(i)) {
-					int idx = k * H + i;
-					counts[idx] = (int) volumes.get(i).getValue();
-					if (allCar)
-						counts[idx] = (int) (counts[idx] * RunOpenBerlinCalibration.CAR_FACTOR);
-				}
-			}
+		if (travelTimeMode == TravelTimeMode.congested && events == null)
+			throw new IllegalArgumentException("Congested travel times require --events");
 
-			linkMapping.put(value.getId(), k++);
+		if (events != null && travelTimeMode != TravelTimeMode.freespeed) {
+			log.info("Reading travel times from {}", events);
+			travelTimes = LinkTravelTimeTable.fromEvents(network, events.toString(), 900, 30 * 3600);
 		}
 
-		Network network = NetworkUtils.readNetwork(networkPath.toString());
-
 		List<PlanPerson> persons = processPopulation(input, network, linkCounts);
 
 		problem = new PlanAssignmentProblem(maxK, metric, persons, counts);
@@ -116,9 +158,15 @@ public class RunCountOptimization implements MATSimAppCommand {
 			case symmetric_percentage_error -> 300;
 		};
 
-		problem.iterate(5000, 0.5, beta, 0.01);
+		problem.iterate(5000, 0.5, beta, 0.01, threads, seed);
 
-		PlanAssignmentProblem solution = solve(problem);
+		Iterable<PlanPerson> solution;
+		if (exactScore)
+			solution = solve("solver-exact.xml", new ExactPlanAssignmentProblem(problem));
+		else if (islands > 0)
+			solution = solveIslands(problem);
+		else
+			solution = solve("solver.xml", problem);
 
 		try (CSVPrinter printer = csv.createPrinter(output)) {
 
@@ -133,28 +181,69 @@ public class RunCountOptimization implements MATSimAppCommand {
 	}
 
 	/**
-	 * Create an array for each person.
+	 * Assign an index to each count station and create the array of hourly counts.
 	 */
-	private List<PlanPerson> processPopulation(Path input, Network network, Counts<Link> linkCounts) {
+	int[] mapCounts(Counts<Link> linkCounts) {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
-		List<PlanPerson> persons = new ArrayList<>();
+		int[] counts = new int[linkCounts.getCounts().size() * H];
+
+		linkMapping = new Object2IntLinkedOpenHashMap<>();
+
+		int k = 0;
+		for (Count<Link> value : linkCounts.getCounts().values()) {
+			Map<Integer, Volume> volumes = value.getVolumes();
+			for (int i = 0; i < H; i++) {
+				if (volumes.containsKey(i)) {
+					int idx = k * H + i;
+					counts[idx] = (int) volumes.get(i).getValue();
+					if (allCar)
+						counts[idx] = (int) (counts[idx] * RunOpenBerlinCalibration.CAR_FACTOR);
+				}
+			}
+
+			linkMapping.put(value.getId(), k++);
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Create an array for each person. The population is streamed and persons are mapped to counts by parallel workers,
+	 * so that only relevant persons are kept in memory.
+	 */
+	List<PlanPerson> processPopulation(Path input, Network network, Counts<Link> linkCounts) throws InterruptedException, ExecutionException {
 
 		Set<Id<Link>> links = linkCounts.getCounts().keySet();
 
+		int workers = Math.max(1, threads);
+		BlockingQueue<Item> queue = new ArrayBlockingQueue<>(1024 * workers);
+		List<Relevant> result = Collections.synchronizedList(new ArrayList<>());
+
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < workers; i++) {
+			futures.add(executor.submit(() -> {
+				while (true) {
+					Item item = queue.take();
+					if (item == Item.END)
+						return null;
+
+					Int2IntMap[] plans = mapPlans(item.person, item.offset, item.scale, network, links);
+					if (plans != null)
+						result.add(new Relevant(item.seq, item.person.getId(), item.offset, plans));
+				}
+			}));
+		}
+
+		// Random numbers are drawn in reading order, so that results don't depend on the number of workers
 		SplittableRandom rnd = new SplittableRandom(0);
+		AtomicLong seq = new AtomicLong();
 
-		for (Person person : population.getPersons().values()) {
+		StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+		reader.addAlgorithm(person -> {
 
 			int scale = (int) (1 / sampleSize);
 
-			Int2IntMap[] plans = new Int2IntMap[maxK];
-			for (int i = 0; i < plans.length; i++) {
-				plans[i] = new Int2IntOpenHashMap();
-			}
-
-			boolean keep = false;
-
 			int offset = 0;
 			// Commercial traffic, which can be chosen to not be included at all
 			if (person.getId().toString().startsWith("commercialPersonTraffic")) {
@@ -166,73 +255,175 @@ public class RunCountOptimization implements MATSimAppCommand {
 					scale += (rnd.nextDouble() < 0.85 ? 5: 4);
 			}
 
-			// Index for plan
-			int k = offset;
-			for (Plan plan : person.getPlans()) {
+			try {
+				put(queue, new Item(seq.getAndIncrement(), person, offset, scale), futures);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				// Stops reading, persons must not be skipped
+				throw new IllegalStateException("Mapping plans failed", e.getCause());
+			}
+		});
 
-				if (k >= maxK)
-					break;
+		try {
+			reader.readFile(input.toString());
 
-				for (PlanElement el : plan.getPlanElements()) {
-					if (el instanceof Leg leg) {
+			for (int i = 0; i < workers; i++) {
+				put(queue, Item.END, futures);
+			}
 
-						if (!leg.getMode().equals(TransportMode.car))
-							continue;
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			// All workers have finished if successful, otherwise the remaining ones are interrupted
+			executor.shutdownNow();
+		}
+
+		result.sort(Comparator.comparingLong(Relevant::seq));
+
+		List<PlanPerson> persons = new ArrayList<>();
+
+		if (compactPlans) {
+			PlanStore.Builder store = new PlanStore.Builder(maxK);
+			for (Relevant r : result) {
+				store.add(r.plans);
+			}
+
+			PlanStore planStore = store.build();
+			for (int i = 0; i < result.size(); i++) {
+				persons.add(new PlanPerson(result.get(i).id, result.get(i).offset, planStore, i));
+			}
+
+			return persons;
+		}
+
+		for (Relevant r : result) {
+			Int2IntMap[] plans = r.plans;
+			for (int i = 0; i < plans.length; i++) {
+				if (plans[i].isEmpty())
+					plans[i] = PlanPerson.NOOP_PLAN;
+			}
+
+			persons.add(new PlanPerson(r.id, r.offset, plans));
+		}
+
+		return persons;
+	}
+
+	/**
+	 * Put an item into the queue, waiting until there is space. Items are never dropped.
+	 *
+	 * @throws ExecutionException if any worker has failed, which is checked before and while waiting
+	 */
+	private static void put(BlockingQueue<Item> queue, Item item, List<Future<?>> futures) throws InterruptedException, ExecutionException {
+		do {
+			// Workers only finish regularly after END, which is the last item, so any finished worker can be checked for its failure
+			for (Future<?> f : futures) {
+				if (f.isDone())
+					f.get();
+			}
+		} while (!queue.offer(item, 1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Map the plans of a person to count increments.
+	 *
+	 * @return null if the person does not pass any count station
+	 */
+	Int2IntMap[] mapPlans(Person person, int offset, int scale, Network network, Set<Id<Link>> links) {
+
+		Int2IntMap[] plans = new Int2IntMap[maxK];
+		for (int i = 0; i < plans.length; i++) {
+			plans[i] = new Int2IntOpenHashMap();
+		}
+
+		boolean keep = false;
+
+		// Index for plan
+		int k = offset;
+		for (Plan plan : person.getPlans()) {
+
+			if (k >= maxK)
+				break;
 
-						// TODO: scale travel time with factor from the leg
+			for (PlanElement el : plan.getPlanElements()) {
+				if (el instanceof Leg leg) {
 
-						if (leg.getRoute() instanceof NetworkRoute route) {
-							boolean relevant = route.getLinkIds().stream().anyMatch(links::contains);
+					if (!leg.getMode().equals(TransportMode.car))
+						continue;
 
-							double time = leg.getDepartureTime().seconds();
+					if (leg.getRoute() instanceof NetworkRoute route) {
+						boolean relevant = route.getLinkIds().stream().anyMatch(links::contains);
 
-							if (relevant) {
-								keep = true;
+						double departure = leg.getDepartureTime().seconds();
+						double time = departure;
+
+						if (relevant) {
+							keep = true;
+
+							// Scale link travel times so that they sum up to the travel time of the leg
+							double factor = 1;
+							if (travelTimeMode == TravelTimeMode.scaled && leg.getTravelTime().isDefined()) {
 								for (Id<Link> linkId : route.getLinkIds()) {
+									time += getTravelTime(network.getLinks().get(linkId), time);
+								}
+
+								if (time > departure)
+									factor = leg.getTravelTime().seconds() / (time - departure);
 
-									Link link = network.getLinks().get(linkId);
+								time = departure;
+							}
+
+							for (Id<Link> linkId : route.getLinkIds()) {
 
-									// Assume free speed travel time
-									time += link.getLength() / link.getFreespeed() + 1;
+								Link link = network.getLinks().get(linkId);
 
-									if (linkMapping.containsKey(linkId)) {
-										int idx = linkMapping.getInt(linkId);
-										int hour = (int) Math.floor(time / 3600);
-										if (hour >= H)
-											continue;
+								time += getTravelTime(link, time) * factor;
 
-										plans[k].merge(idx * H + hour, scale, Integer::sum);
-									}
+								if (linkMapping.containsKey(linkId)) {
+									int idx = linkMapping.getInt(linkId);
+									int hour = (int) Math.floor(time / 3600);
+									if (hour >= H)
+										continue;
+
+									plans[k].merge(idx * H + hour, scale, Integer::sum);
 								}
 							}
 						}
 					}
 				}
-				k++;
 			}
+			k++;
+		}
 
-			if (keep) {
-				for (int i = 0; i < plans.length; i++) {
-					if (plans[i].isEmpty())
-						plans[i] = PlanPerson.NOOP_PLAN;
-				}
+		return keep ? plans : null;
+	}
 
-				persons.add(new PlanPerson(person.getId(), offset, plans));
-			}
-		}
+	/**
+	 * Travel time of a link, either congested or assuming free speed.
+	 */
+	private double getTravelTime(Link link, double time) {
+		if (travelTimes != null)
+			return travelTimes.getTravelTime(link, time);
 
-		return persons;
+		return link.getLength() / link.getFreespeed() + 1;
 	}
 
-	private PlanAssignmentProblem solve(PlanAssignmentProblem problem) {
+	private <T> T solve(String resource, T problem) {
 
 		// Loading fails if xerces is on the classpath
 
-		SolverFactory<PlanAssignmentProblem> factory = SolverFactory.createFromXmlResource("solver.xml");
+		SolverConfig config = SolverConfig.createFromXmlResource(resource);
+		if (environmentMode != null)
+			config.setEnvironmentMode(environmentMode);
 
-		Solver<PlanAssignmentProblem> solver = factory.buildSolver();
+		Solver<T> solver = SolverFactory.<T>create(config).buildSolver();
 
 		AtomicLong ts = new AtomicLong(System.currentTimeMillis());
+		long start = System.currentTimeMillis();
+		AtomicBoolean reached = new AtomicBoolean(Double.isNaN(targetError));
 
 		solver.addEventListener(event -> {
 
@@ -241,8 +432,41 @@ public class RunCountOptimization implements MATSimAppCommand {
 				log.info("New best solution: {}", event.getNewBestScore());
 				ts.set(System.currentTimeMillis());
 			}
+
+			if (!reached.get() && -event.getNewBestScore().toLevelNumbers()[0].doubleValue() <= targetError) {
+				log.info("Reached target error of {} after {}s", targetError, (System.currentTimeMillis() - start) / 1000d);
+				reached.set(true);
+			}
 		});
 
 		return solver.solve(problem);
 	}
+
+	private PlanAssignmentProblem solveIslands(PlanAssignmentProblem problem) throws InterruptedException, ExecutionException {
+
+		SolverConfig config = islandConfig != null ? SolverConfig.createFromXmlFile(islandConfig.toFile()) :
+				SolverConfig.createFromXmlResource("solver-island.xml");
+
+		IslandSolver solver = new IslandSolver(config, islands, H, Duration.ofSeconds(islandEpoch));
+
+		return solver.solve(problem, targetError, Duration.ofMinutes(timeLimit));
+	}
+
+	/**
+	 * Person read from input, together with its position in the file.
+	 */
+	private record Item(long seq, Person person, int offset, int scale) {
+
+		/**
+		 * Signals the end of the input.
+		 */
+		static final Item END = new Item(-1, null, 0, 0);
+
+	}
+
+	/**
+	 * Person that is relevant for the optimization.
+	 */
+	private record Relevant(long seq, Id<Person> id, int offset, Int2IntMap[] plans) {
+	}
 }
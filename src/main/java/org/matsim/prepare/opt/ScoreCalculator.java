@@ -1,7 +1,6 @@
 package org.matsim.prepare.opt;
 
 
-import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import org.apache.commons.math3.util.FastMath;
 import org.optaplanner.core.api.score.buildin.simplebigdecimal.SimpleBigDecimalScore;
 import org.optaplanner.core.api.score.calculator.IncrementalScoreCalculator;
@@ -30,6 +29,13 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 
 	private ErrorMetric metric;
 
+	/**
+	 * State of the current {@link #update(PlanPerson, int, int)}, kept in fields so that no consumer is allocated per call.
+	 */
+	private int updateSign;
+	private double updateDiff;
+	private final PlanPerson.EntryConsumer updateEntry = this::updateEntry;
+
 	static double diffChange(ErrorMetric err, int count, int old, int update) {
 
 		// Floating point arithmetic still leads to score corruption in full assert mode
@@ -47,14 +53,12 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 	@Override
 	public void resetWorkingSolution(PlanAssignmentProblem problem) {
 
-		observed = new int[problem.counts.length];
+		observed = problem.base != null ? problem.base.clone() : new int[problem.counts.length];
 		counts = problem.counts;
 		metric = problem.metric;
 
 		for (PlanPerson person : problem) {
-			for (Int2IntMap.Entry e : person.selected().int2IntEntrySet()) {
-				observed[e.getIntKey()] += e.getIntValue();
-			}
+			person.addSelected(observed, 1);
 		}
 
 		calcScoreInternal();
@@ -92,14 +96,7 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 		PlanPerson person = (PlanPerson) entity;
 
 		// remove this persons plan from the calculation
-		for (Int2IntMap.Entry e : person.selected().int2IntEntrySet()) {
-
-			int old = observed[e.getIntKey()];
-			int update = observed[e.getIntKey()] -= e.getIntValue();
-
-			error += diffChange(metric, counts[e.getIntKey()], old, update);
-		}
-
+		error += update(person, person.getK(), -1);
 	}
 
 	@Override
@@ -109,13 +106,50 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 		PlanPerson person = (PlanPerson) entity;
 
 		// add this persons contribution to the score
-		for (Int2IntMap.Entry e : person.selected().int2IntEntrySet()) {
+		error += update(person, person.getK(), 1);
+	}
+
+	/**
+	 * Add (sign = 1) or remove (sign = -1) plan k of a person to the observed counts.
+	 *
+	 * @return change of the error
+	 */
+	private double update(PlanPerson person, int k, int sign) {
+		updateSign = sign;
+		updateDiff = 0;
+		person.forEachEntry(k, updateEntry);
+		return updateDiff;
+	}
 
-			int old = observed[e.getIntKey()];
-			int update = observed[e.getIntKey()] += e.getIntValue();
+	private void updateEntry(int key, int value) {
+		int old = observed[key];
+		int update = observed[key] += updateSign * value;
 
-			error += diffChange(metric, counts[e.getIntKey()], old, update);
-		}
+		updateDiff += diffChange(metric, counts[key], old, update);
+	}
+
+	/**
+	 * Change of the error if a person would switch to plan k. The observed counts are restored afterward.
+	 */
+	double deltaChange(PlanPerson person, int k) {
+
+		int current = person.getK();
+		if (current == k)
+			return 0;
+
+		double delta = update(person, current, -1) + update(person, k, 1);
+
+		update(person, k, -1);
+		update(person, current, 1);
+
+		return delta;
+	}
+
+	/**
+	 * Absolute difference between real and observed count at an index.
+	 */
+	int absDiff(int idx) {
+		return Math.abs(counts[idx] - observed[idx]);
 	}
 
 	@Override
@@ -132,13 +166,11 @@ public final class ScoreCalculator implements IncrementalScoreCalculator<PlanAss
 		return SimpleBigDecimalScore.of(BigDecimal.valueOf(-error));
 	}
 
-	double scoreEntry(Int2IntMap.Entry e) {
-
-		int idx = e.getIntKey();
+	double scoreEntry(int idx, int value) {
 
 		// Calculate impact compared to a plan without the observations of this plan
 		// old can not get negative
 
-		return -diffChange(metric, counts[idx], Math.max(0, observed[idx] - e.getIntValue()), observed[idx]);
+		return -diffChange(metric, counts[idx], Math.max(0, observed[idx] - value), observed[idx]);
 	}
 }
@@ -10,7 +10,11 @@ import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CsvOptions;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.scenario.ScenarioUtils;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
@@ -30,6 +34,9 @@ public class SelectPlansFromIndex implements MATSimAppCommand {
 	@CommandLine.Option(names = "--csv", description = "Path to input plans (Usually experienced plans).", required = true)
 	private Path csv;
 
+	@CommandLine.Option(names = "--streaming", description = "Process persons one by one without reading the whole population into memory.", defaultValue = "false")
+	private boolean streaming;
+
 	@CommandLine.Mixin
 	private CsvOptions csvOpt;
 
@@ -40,7 +47,6 @@ public class SelectPlansFromIndex implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
 		Object2IntMap<Id<Person>> idx = new Object2IntOpenHashMap<>();
 		try (CSVParser parser = csvOpt.createParser(csv)) {
 			for (CSVRecord row : parser) {
@@ -48,27 +54,31 @@ public class SelectPlansFromIndex implements MATSimAppCommand {
 			}
 		}
 
-		Set<Id<Person>> toRemove = new HashSet<>();
-
-		for (Person person : population.getPersons().values()) {
+		if (streaming) {
+			StreamingPopulationWriter writer = new StreamingPopulationWriter();
+			writer.startStreaming(output.toString());
 
-			List<? extends Plan> plans = person.getPlans();
-			Set<Plan> removePlans = new HashSet<>();
+			StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+			reader.addAlgorithm(person -> {
+				if (selectPlan(person, idx))
+					writer.run(person);
+			});
 
-			// will be 0 if no value is present
-			int planIndex = idx.getInt(person.getId());
-			if (planIndex == -1) {
-				toRemove.add(person.getId());
-				continue;
+			try {
+				reader.readFile(input.toString());
+			} finally {
+				writer.closeStreaming();
 			}
 
-			for (int i = 0; i < plans.size(); i++) {
-				if (i == planIndex) {
-					person.setSelectedPlan(plans.get(i));
-				} else
-					removePlans.add(plans.get(i));
-			}
-			removePlans.forEach(person::removePlan);
+			return 0;
+		}
+
+		Population population = PopulationUtils.readPopulation(input.toString());
+		Set<Id<Person>> toRemove = new HashSet<>();
+
+		for (Person person : population.getPersons().values()) {
+			if (!selectPlan(person, idx))
+				toRemove.add(person.getId());
 		}
 
 		toRemove.forEach(population::removePerson);
@@ -77,4 +87,30 @@ public class SelectPlansFromIndex implements MATSimAppCommand {
 
 		return 0;
 	}
+
+	/**
+	 * Select the plan with the index given in the csv and remove all other plans.
+	 *
+	 * @return false if the person should be removed
+	 */
+	private static boolean selectPlan(Person person, Object2IntMap<Id<Person>> idx) {
+
+		List<? extends Plan> plans = person.getPlans();
+
+		// will be 0 if no value is present
+		int planIndex = idx.getInt(person.getId());
+		if (planIndex == -1)
+			return false;
+
+		if (planIndex < plans.size())
+			person.setSelectedPlan(plans.get(planIndex));
+
+		// Remove from the end, so that indices of the remaining plans don't change
+		for (int i = plans.size() - 1; i >= 0; i--) {
+			if (i != planIndex)
+				person.removePlan(plans.get(i));
+		}
+
+		return true;
+	}
 }
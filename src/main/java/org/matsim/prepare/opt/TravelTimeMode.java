@@ -0,0 +1,19 @@
+package org.matsim.prepare.opt;
+
+/**
+ * Travel times used to determine at which hour a count station is passed.
+ */
+enum TravelTimeMode {
+	/**
+	 * Free speed travel time of each link.
+	 */
+	freespeed,
+	/**
+	 * Congested travel times from the events of the run.
+	 */
+	congested,
+	/**
+	 * Link travel times, scaled so that their sum matches the travel time of the leg.
+	 */
+	scaled
+}
@@ -0,0 +1,153 @@
+package org.matsim.prepare.population;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.triangulate.ConformingDelaunayTriangulationBuilder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.geometry.geotools.MGC;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Samples coordinates uniformly within a geometry. The geometry is triangulated once, afterward a triangle is chosen
+ * proportional to its area and a point is drawn within it, which does not need any rejection.
+ * Geometries that can not be triangulated are sampled by rejection against their prepared geometry instead.
+ */
+public final class AreaSampler {
+
+	private static final Logger log = LogManager.getLogger(AreaSampler.class);
+
+	private final PreparedGeometry geom;
+	private final Envelope bbox;
+
+	/**
+	 * Cumulative area of the triangles, null if the geometry could not be triangulated.
+	 */
+	private final double[] area;
+
+	/**
+	 * Corners of the triangles, stored as x and y of a, b and c.
+	 */
+	private final double[] corners;
+
+	public AreaSampler(Geometry geometry) {
+
+		this.geom = PreparedGeometryFactory.prepare(geometry);
+		this.bbox = geometry.getEnvelopeInternal();
+
+		double[] area = null;
+		double[] corners = null;
+
+		try {
+			ConformingDelaunayTriangulationBuilder builder = new ConformingDelaunayTriangulationBuilder();
+			builder.setSites(geometry);
+			builder.setConstraints(geometry);
+
+			Geometry triangles = builder.getTriangles(geometry.getFactory());
+
+			area = new double[triangles.getNumGeometries()];
+			corners = new double[triangles.getNumGeometries() * 6];
+
+			int n = 0;
+			double total = 0;
+			for (int i = 0; i < triangles.getNumGeometries(); i++) {
+				Geometry t = triangles.getGeometryN(i);
+
+				// The triangulation covers the convex hull, constraints ensure that triangles are either completely inside or outside
+				if (!geom.contains(t.getCentroid()))
+					continue;
+
+				Coordinate[] c = t.getCoordinates();
+				for (int j = 0; j < 3; j++) {
+					corners[n * 6 + j * 2] = c[j].x;
+					corners[n * 6 + j * 2 + 1] = c[j].y;
+				}
+
+				total += t.getArea();
+				area[n++] = total;
+			}
+
+			if (total <= 0) {
+				area = null;
+				corners = null;
+			} else {
+				area = Arrays.copyOf(area, n);
+			}
+
+		} catch (RuntimeException e) {
+			log.warn("Could not triangulate geometry, using rejection sampling", e);
+			area = null;
+			corners = null;
+		}
+
+		this.area = area;
+		this.corners = corners;
+	}
+
+	/**
+	 * Sample a coordinate uniformly within the geometry.
+	 */
+	public Coord sample(SplittableRandom rnd) {
+
+		if (area == null)
+			return reject(rnd);
+
+		double u = rnd.nextDouble() * area[area.length - 1];
+
+		// First triangle with cumulative area greater than u
+		int lo = 0;
+		int hi = area.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (area[mid] <= u)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		double r1 = rnd.nextDouble();
+		double r2 = rnd.nextDouble();
+
+		// Reflect points of the other half of the parallelogram back into the triangle
+		if (r1 + r2 > 1) {
+			r1 = 1 - r1;
+			r2 = 1 - r2;
+		}
+
+		int i = lo * 6;
+		double ax = corners[i];
+		double ay = corners[i + 1];
+
+		return new Coord(
+			ax + r1 * (corners[i + 2] - ax) + r2 * (corners[i + 4] - ax),
+			ay + r1 * (corners[i + 3] - ay) + r2 * (corners[i + 5] - ay)
+		);
+	}
+
+	private Coord reject(SplittableRandom rnd) {
+
+		int i = 0;
+		Coord coord;
+		do {
+			coord = new Coord(
+				bbox.getMinX() + (bbox.getMaxX() - bbox.getMinX()) * rnd.nextDouble(),
+				bbox.getMinY() + (bbox.getMaxY() - bbox.getMinY()) * rnd.nextDouble()
+			);
+
+			i++;
+
+		} while (!geom.contains(MGC.coord2Point(coord)) && i < 1500);
+
+		if (i == 1500)
+			log.warn("Invalid coordinate generated");
+
+		return coord;
+	}
+
+}
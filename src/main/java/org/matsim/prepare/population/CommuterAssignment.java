@@ -1,46 +1,138 @@
 package org.matsim.prepare.population;
 
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.longs.*;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.Point;
+import org.matsim.api.core.v01.Coord;
 import org.matsim.application.options.CsvOptions;
 import org.matsim.facilities.ActivityFacility;
 import org.opengis.feature.simple.SimpleFeature;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.file.Path;
-import java.util.Map;
 import java.util.SplittableRandom;
 
 /**
  * Helper class for commuter assignment.
+ * The remaining commuters of all relations are stored in one array, which is updated with compare-and-set, so that no locks are needed.
  */
 public class CommuterAssignment {
 
 	private static final Logger log = LogManager.getLogger(CommuterAssignment.class);
 
-	private final Map<Long, SimpleFeature> zones;
+	private static final VarHandle QUOTA = MethodHandles.arrayElementVarHandle(double[].class);
 
 	/**
-	 * Outgoing commuter from ars to ars.
+	 * Candidate slots and their sampling keys, reused by each thread.
 	 */
-	private final Long2ObjectMap<Long2DoubleMap> commuter;
+	private static final ThreadLocal<Buffer> BUFFER = ThreadLocal.withInitial(Buffer::new);
+
+	/**
+	 * Index of each origin ars. Relations of origin i are stored in the slots from {@code start[i]} until {@code start[i + 1]}.
+	 */
+	private final Long2IntMap origins;
+	private final int[] start;
+
+	/**
+	 * Destination zone of each slot.
+	 */
+	private final long[] targets;
+
+	/**
+	 * Envelope of the destination zone of each slot as minX, minY, maxX, maxY. NaN if the zone is not known.
+	 */
+	private final double[] bounds;
+
+	/**
+	 * Remaining commuters of each slot.
+	 */
+	private final double[] quota;
 
-	private final CsvOptions csv = new CsvOptions(CSVFormat.Predefined.Default);
 	private final double sample;
+	private final boolean weighted;
 
 	public CommuterAssignment(Long2ObjectMap<SimpleFeature> zones, Path commuterPath, double sample) {
+		this(zones, commuterPath, sample, false);
+	}
+
+	/**
+	 * Read commuters from csv.
+	 *
+	 * @param weighted sample destinations weighted by their remaining commuters, instead of uniformly
+	 */
+	public CommuterAssignment(Long2ObjectMap<SimpleFeature> zones, Path commuterPath, double sample, boolean weighted) {
+		this(readZones(zones), readCommuter(commuterPath), sample, weighted);
+	}
+
+	/**
+	 * Create assignment from zone geometries and outgoing commuters from ars to ars.
+	 */
+	CommuterAssignment(Long2ObjectMap<Geometry> zones, Long2ObjectMap<Long2DoubleMap> commuter, double sample, boolean weighted) {
 		this.sample = sample;
+		this.weighted = weighted;
+		this.origins = new Long2IntOpenHashMap();
+		this.start = new int[commuter.size() + 1];
+
+		int n = commuter.values().stream().mapToInt(Long2DoubleMap::size).sum();
+		this.targets = new long[n];
+		this.bounds = new double[4 * n];
+		this.quota = new double[n];
+
+		int slot = 0;
+		int i = 0;
+		for (Long2ObjectMap.Entry<Long2DoubleMap> e : commuter.long2ObjectEntrySet()) {
+			origins.put(e.getLongKey(), i);
+			for (Long2DoubleMap.Entry t : e.getValue().long2DoubleEntrySet()) {
+				targets[slot] = t.getLongKey();
+				quota[slot] = t.getDoubleValue();
+
+				Geometry zone = zones.get(t.getLongKey());
+				Envelope env = zone != null ? zone.getEnvelopeInternal() : null;
+				bounds[4 * slot] = env != null ? env.getMinX() : Double.NaN;
+				bounds[4 * slot + 1] = env != null ? env.getMinY() : Double.NaN;
+				bounds[4 * slot + 2] = env != null ? env.getMaxX() : Double.NaN;
+				bounds[4 * slot + 3] = env != null ? env.getMaxY() : Double.NaN;
+				slot++;
+			}
+
+			start[++i] = slot;
+		}
+	}
+
+	/**
+	 * Create a copy with the same remaining commuters, which are reduced independently of the original.
+	 */
+	public CommuterAssignment(CommuterAssignment other) {
+		this.sample = other.sample;
+		this.weighted = other.weighted;
+		this.origins = other.origins;
+		this.start = other.start;
+		this.targets = other.targets;
+		this.bounds = other.bounds;
+		this.quota = other.quota.clone();
+	}
+
+	private static Long2ObjectMap<Geometry> readZones(Long2ObjectMap<SimpleFeature> zones) {
+		Long2ObjectMap<Geometry> result = new Long2ObjectOpenHashMap<>();
+		for (Long2ObjectMap.Entry<SimpleFeature> e : zones.long2ObjectEntrySet()) {
+			result.put(e.getLongKey(), (Geometry) e.getValue().getDefaultGeometry());
+		}
+		return result;
+	}
 
-		// outgoing commuters
-		this.commuter = new Long2ObjectOpenHashMap<>();
-		this.zones = zones;
+	private static Long2ObjectMap<Long2DoubleMap> readCommuter(Path commuterPath) {
+
+		Long2ObjectMap<Long2DoubleMap> commuter = new Long2ObjectOpenHashMap<>();
+		CsvOptions csv = new CsvOptions(CSVFormat.Predefined.Default);
 
 		// read commuters
 		try (CSVParser parser = csv.createParser(commuterPath)) {
@@ -55,84 +147,124 @@ public class CommuterAssignment {
 				}
 
 				String n = row.get("n");
-				commuter.computeIfAbsent(from, k -> Long2DoubleMaps.synchronize(new Long2DoubleOpenHashMap()))
+				commuter.computeIfAbsent(from, k -> new Long2DoubleOpenHashMap())
 					.mergeDouble(to, Integer.parseInt(n), Double::sum);
 			}
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
 		}
 
+		log.info("Read commuters for {} zones", commuter.size());
+
+		return commuter;
 	}
 
 	/**
 	 * Select and return a commute target.
 	 *
-	 * @param f   sampler producing target locations
+	 * @param f   sampler producing target locations, which needs to check the distance to the reference coordinate itself
 	 * @param ars origin zone
 	 */
-	public ActivityFacility selectTarget(SplittableRandom rnd, long ars, double dist, Point refPoint, Sampler f) {
+	public ActivityFacility selectTarget(SplittableRandom rnd, long ars, double dist, Coord refCoord, Sampler f) {
 
-		// Commute in same zone
-		Long2DoubleMap comms = commuter.get(ars);
-		if (!commuter.containsKey(ars) || comms.isEmpty())
+		double maxDist = dist * 1.2;
+
+		if (!origins.containsKey(ars))
 			return null;
 
-		LongList entries;
-		synchronized (comms) {
-			entries = new LongArrayList(comms.keySet());
+		int idx = origins.get(ars);
+		int from = start[idx];
+
+		Buffer buf = BUFFER.get();
+		buf.ensureCapacity(start[idx + 1] - from);
+
+		// Candidates are all destinations with remaining commuters
+		int n = 0;
+		for (int slot = from; slot < start[idx + 1]; slot++) {
+			double q = (double) QUOTA.getVolatile(quota, slot);
+			if (q > 0) {
+				buf.slots[n] = slot;
+				// Exponential race, smaller keys are drawn first. This is the same as drawing weighted without replacement
+				if (weighted)
+					buf.keys[slot - from] = -Math.log(1 - rnd.nextDouble()) / q;
+				n++;
+			}
 		}
 
-		while (!entries.isEmpty()) {
-			long key = entries.removeLong(rnd.nextInt(entries.size()));
+		if (weighted) {
+			double[] keys = buf.keys;
+			IntArrays.quickSort(buf.slots, 0, n, (a, b) -> Double.compare(keys[a - from], keys[b - from]));
+		}
 
-			SimpleFeature ft = zones.get(key);
+		for (int i = 0; i < n; i++) {
+
+			int slot;
+			if (weighted)
+				slot = buf.slots[i];
+			else {
+				// Partial shuffle, which draws uniformly without replacement
+				int j = i + rnd.nextInt(n - i);
+				slot = buf.slots[j];
+				buf.slots[j] = buf.slots[i];
+			}
 
 			// TODO: should maybe not be allowed
-			if (ft == null)
+			if (Double.isNaN(bounds[4 * slot]))
 				continue;
 
-			Geometry zone = (Geometry) ft.getDefaultGeometry();
-
-			// Zones too far away don't need to be considered
-			if (zone.distance(refPoint) > dist * 1.2)
+			// Zones too far away don't need to be considered, the distance to the envelope is a lower bound of the distance to the zone
+			double dx = Math.max(0, Math.max(bounds[4 * slot] - refCoord.getX(), refCoord.getX() - bounds[4 * slot + 2]));
+			double dy = Math.max(0, Math.max(bounds[4 * slot + 1] - refCoord.getY(), refCoord.getY() - bounds[4 * slot + 3]));
+			if (dx * dx + dy * dy > maxDist * maxDist)
 				continue;
 
-			ActivityFacility res = f.sample(zone);
-
-			if (res != null) {
-				synchronized (comms) {
-					double old = comms.get(key);
-
-					// Check if other thread reduced the counter while computing
-					// result needs to be thrown away
-					if (old <= 0) {
-						comms.remove(key);
-						continue;
-					}
-
-					// subtract available commuters
-					double newValue = old - (1 / sample);
-					comms.put(key, newValue);
-
-					if (newValue <= 0)
-						comms.remove(key);
-				}
+			ActivityFacility res = f.sample(targets[slot]);
 
+			// Other threads could have reduced the counter while computing, the result needs to be thrown away if no commuters are left
+			if (res != null && take(slot))
 				return res;
-			}
 		}
 
-
 		return null;
 	}
 
+	/**
+	 * Subtract the commuters represented by one agent from a relation.
+	 *
+	 * @return whether there were commuters left
+	 */
+	private boolean take(int slot) {
+		double old;
+		do {
+			old = (double) QUOTA.getVolatile(quota, slot);
+			if (old <= 0)
+				return false;
+
+		} while (!QUOTA.compareAndSet(quota, slot, old, old - (1 / sample)));
+
+		return true;
+	}
+
 	/**
 	 * Sample locations from specific zone.
 	 */
 	interface Sampler {
 
-		ActivityFacility sample(Geometry zone);
+		ActivityFacility sample(long zone);
+
+	}
+
+	private static final class Buffer {
 
+		private int[] slots = new int[0];
+		private double[] keys = new double[0];
+
+		void ensureCapacity(int n) {
+			if (slots.length < n) {
+				slots = new int[n];
+				keys = new double[n];
+			}
+		}
 	}
 
 }
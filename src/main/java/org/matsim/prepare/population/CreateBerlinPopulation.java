@@ -34,6 +34,10 @@ import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.IntStream;
 
 @CommandLine.Command(
@@ -64,13 +68,12 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 	@CommandLine.Option(names = "--sample", description = "Sample size to generate", defaultValue = "0.25")
 	private double sample;
 
-	private Map<String, MultiPolygon> lors;
-
-	private SplittableRandom rnd;
+	@CommandLine.Option(names = "--threads", description = "Number of threads to process LORs")
+	private int threads = Runtime.getRuntime().availableProcessors();
 
-	private Population population;
+	private Map<String, MultiPolygon> lors;
 
-	private final CoordinateTransformation ct = new GeotoolsTransformation("EPSG:25833", "EPSG:25832");
+	private PopulationFactory factory;
 
 	public static void main(String[] args) {
 		new CreateBerlinPopulation().execute(args);
@@ -87,9 +90,10 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 
 		List<SimpleFeature> fts = shp.readFeatures();
 
-		rnd = new SplittableRandom(0);
+		SplittableRandom rnd = new SplittableRandom(0);
 		lors = new HashMap<>();
-		population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		factory = population.getFactory();
 
 		// Collect all LORs
 		for (SimpleFeature ft : fts) {
@@ -100,6 +104,10 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 
 		CSVFormat.Builder format = CSVFormat.DEFAULT.builder().setDelimiter(';').setHeader().setSkipHeaderRecord(true);
 
+		// Each LOR gets its own random generator and range of person indices, so the result does not depend on the number of threads
+		List<Callable<List<Person>>> tasks = new ArrayList<>();
+		int offset = 0;
+
 		try (CSVParser reader = new CSVParser(Files.newBufferedReader(input, Charset.forName("windows-1252")), format.build())) {
 
 			for (CSVRecord row : reader) {
@@ -108,13 +116,40 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 				if (this.year != year)
 					continue;
 
+				int n;
 				try {
-					processLOR(row);
+					n = (int) Math.ceil(Integer.parseInt(row.get("Einwohnerinnen und Einwohner (EW) insgesamt")) * sample);
 				} catch (RuntimeException e) {
 					log.error("Error processing lor", e);
 					log.error(row.toString());
+					continue;
+				}
+
+				SplittableRandom lorRnd = rnd.split();
+				int lorOffset = offset;
+				offset += n;
+
+				tasks.add(() -> {
+					try {
+						return processLOR(row, n, lorOffset, lorRnd);
+					} catch (RuntimeException e) {
+						log.error("Error processing lor", e);
+						log.error(row.toString());
+						return List.of();
+					}
+				});
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<List<Person>> persons : executor.invokeAll(tasks)) {
+				for (Person person : persons.get()) {
+					population.addPerson(person);
 				}
 			}
+		} finally {
+			executor.shutdown();
 		}
 
 		log.info("Generated {} persons", population.getPersons().size());
@@ -127,12 +162,14 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 		return 0;
 	}
 
-	private void processLOR(CSVRecord row) throws ParseException {
+	/**
+	 * Create persons of one LOR, which are identified by the indices starting at offset.
+	 */
+	private List<Person> processLOR(CSVRecord row, int n, int offset, SplittableRandom rnd) throws ParseException {
 
 		String raumID = row.get("RaumID");
-		int n = Integer.parseInt(row.get("Einwohnerinnen und Einwohner (EW) insgesamt"));
 
-		log.info("Processing {} with {} inhabitants", raumID, n);
+		log.info("Processing {} with {} persons", raumID, n);
 
 		double young = FMT.parse(row.get("Anteil der unter 18-Jährigen an Einwohnerinnen und Einwohner (EW) gesamt")).doubleValue() / 100;
 		double old = FMT.parse(row.get("Anteil der 65-Jährigen und älter an Einwohnerinnen und Einwohner (EW) gesamt")).doubleValue() / 100;
@@ -158,17 +195,17 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 				AgeGroup.OLD, old
 		));
 
-		MultiPolygon geom = lors.get(raumID);
-
-		PopulationFactory f = population.getFactory();
+		AreaSampler area = new AreaSampler(lors.get(raumID));
+		CoordinateTransformation ct = new GeotoolsTransformation("EPSG:25833", "EPSG:25832");
+		List<Person> persons = new ArrayList<>(n);
 
 		var youngDist = new UniformAttributeDistribution<>(IntStream.range(1, 18).boxed().toList());
 		var middleDist = new UniformAttributeDistribution<>(IntStream.range(18, 65).boxed().toList());
 		var oldDist = new UniformAttributeDistribution<>(IntStream.range(65, 100).boxed().toList());
 
-		for (int i = 0; i < n * sample; i++) {
+		for (int i = 0; i < n; i++) {
 
-			Person person = f.createPerson(generateId(population, "berlin", rnd));
+			Person person = factory.createPerson(generateId("berlin", offset + i));
 			PersonUtils.setSex(person, sex.sample());
 			PopulationUtils.putSubpopulation(person, "person");
 
@@ -185,7 +222,7 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 				PersonUtils.setEmployed(person, false);
 			}
 
-			Coord coord = ct.transform(sampleHomeCoordinate(geom, "EPSG:25833", landuse, rnd));
+			Coord coord = ct.transform(sampleHomeCoordinate(area, "EPSG:25833", landuse, rnd));
 
 			person.getAttributes().putAttribute(Attributes.HOME_X, coord.getX());
 			person.getAttributes().putAttribute(Attributes.HOME_Y, coord.getY());
@@ -194,14 +231,16 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 			person.getAttributes().putAttribute(Attributes.ARS, 110000000000L);
 			person.getAttributes().putAttribute(Attributes.LOR, Integer.parseInt(raumID));
 
-			Plan plan = f.createPlan();
-			plan.addActivity(f.createActivityFromCoord("home", coord));
+			Plan plan = factory.createPlan();
+			plan.addActivity(factory.createActivityFromCoord("home", coord));
 
 			person.addPlan(plan);
 			person.setSelectedPlan(plan);
 
-			population.addPerson(person);
+			persons.add(person);
 		}
+
+		return persons;
 	}
 
 	/**
@@ -220,6 +259,18 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 		return id;
 	}
 
+	/**
+	 * Generate an id from a unique index. Indices are scrambled by a bijection, so that ids look random but never collide.
+	 */
+	public static Id<Person> generateId(String prefix, int index) {
+
+		int x = index * 0x9e3779b9;
+		x = (x ^ (x >>> 16)) * 0x45d9f3b;
+		x = (x ^ (x >>> 16)) * 0x45d9f3b;
+		x = x ^ (x >>> 16);
+
+		return Id.createPersonId(prefix + "_" + HexFormat.of().toHexDigits(x));
+	}
 
 	/**
 	 * Samples a home coordinates from geometry and landuse.
@@ -246,6 +297,13 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 		return RunOpenBerlinCalibration.roundCoord(coord);
 	}
 
+	/**
+	 * Samples a home coordinate from a triangulated geometry and landuse.
+	 */
+	public static Coord sampleHomeCoordinate(AreaSampler area, String crs, LanduseOptions landuse, SplittableRandom rnd) {
+		return RunOpenBerlinCalibration.roundCoord(landuse.select(crs, () -> area.sample(rnd)));
+	}
+
 	private enum AgeGroup {
 		YOUNG,
 		MIDDLE,
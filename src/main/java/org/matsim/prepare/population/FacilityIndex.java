@@ -0,0 +1,169 @@
+package org.matsim.prepare.population;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.facilities.ActivityFacility;
+
+import java.util.Collection;
+import java.util.SplittableRandom;
+
+/**
+ * Uniform grid of facility coordinates, which allows to query facilities within a distance band around a coordinate.
+ * Coordinates are stored in primitive arrays sorted by cell, and cells outside the band are skipped entirely.
+ * No geometries are created during queries.
+ */
+final class FacilityIndex {
+
+	/**
+	 * Average number of facilities per cell.
+	 */
+	private static final double FACILITIES_PER_CELL = 8;
+
+	/**
+	 * Maximum number of cells in each dimension.
+	 */
+	private static final int MAX_CELLS = 2048;
+
+	private final ActivityFacility[] facilities;
+	private final double[] xs;
+	private final double[] ys;
+
+	/**
+	 * Facilities of cell c are stored from {@code cellStart[c]} until {@code cellStart[c + 1]}.
+	 */
+	private final int[] cellStart;
+
+	private final double minX;
+	private final double minY;
+	private final double cellSize;
+	private final int nx;
+	private final int ny;
+
+	FacilityIndex(Collection<? extends ActivityFacility> facilities) {
+
+		int n = facilities.size();
+
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+
+		for (ActivityFacility f : facilities) {
+			Coord c = f.getCoord();
+			minX = Math.min(minX, c.getX());
+			minY = Math.min(minY, c.getY());
+			maxX = Math.max(maxX, c.getX());
+			maxY = Math.max(maxY, c.getY());
+		}
+
+		if (n == 0) {
+			minX = minY = maxX = maxY = 0;
+		}
+
+		double w = Math.max(maxX - minX, 1);
+		double h = Math.max(maxY - minY, 1);
+
+		this.minX = minX;
+		this.minY = minY;
+		this.cellSize = Math.max(Math.sqrt(w * h * FACILITIES_PER_CELL / Math.max(n, 1)), Math.max(w, h) / (MAX_CELLS - 1));
+		this.nx = (int) (w / cellSize) + 1;
+		this.ny = (int) (h / cellSize) + 1;
+
+		// Counting sort of the facilities by cell
+		int[] cells = new int[n];
+		this.cellStart = new int[nx * ny + 1];
+
+		int i = 0;
+		for (ActivityFacility f : facilities) {
+			cells[i] = cell(cellX(f.getCoord().getX()), cellY(f.getCoord().getY()));
+			cellStart[cells[i] + 1]++;
+			i++;
+		}
+
+		for (int c = 0; c < nx * ny; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+
+		this.facilities = new ActivityFacility[n];
+		this.xs = new double[n];
+		this.ys = new double[n];
+
+		int[] pos = new int[nx * ny];
+		i = 0;
+		for (ActivityFacility f : facilities) {
+			int idx = cellStart[cells[i]] + pos[cells[i]]++;
+			this.facilities[idx] = f;
+			xs[idx] = f.getCoord().getX();
+			ys[idx] = f.getCoord().getY();
+			i++;
+		}
+	}
+
+	/**
+	 * Sample a facility uniformly among all facilities with a distance in [lower, upper] to the reference coordinate.
+	 *
+	 * @return null if no facility is within the distance band
+	 */
+	ActivityFacility sample(SplittableRandom rnd, Coord ref, double lower, double upper) {
+
+		if (facilities.length == 0 || upper < lower)
+			return null;
+
+		double x = ref.getX();
+		double y = ref.getY();
+
+		double lower2 = lower > 0 ? lower * lower : 0;
+		double upper2 = upper * upper;
+
+		int x0 = cellX(x - upper);
+		int x1 = cellX(x + upper);
+		int y0 = cellY(y - upper);
+		int y1 = cellY(y + upper);
+
+		ActivityFacility selected = null;
+		int n = 0;
+
+		for (int cy = y0; cy <= y1; cy++) {
+
+			double cellMinY = minY + cy * cellSize;
+			double dyMin = Math.max(0, Math.max(cellMinY - y, y - cellMinY - cellSize));
+			double dyMax = Math.max(Math.abs(cellMinY - y), Math.abs(cellMinY + cellSize - y));
+
+			for (int cx = x0; cx <= x1; cx++) {
+
+				double cellMinX = minX + cx * cellSize;
+				double dxMin = Math.max(0, Math.max(cellMinX - x, x - cellMinX - cellSize));
+				double dxMax = Math.max(Math.abs(cellMinX - x), Math.abs(cellMinX + cellSize - x));
+
+				// Cell is either completely outside the outer or inside the inner circle
+				if (dxMin * dxMin + dyMin * dyMin > upper2 || dxMax * dxMax + dyMax * dyMax < lower2)
+					continue;
+
+				int c = cell(cx, cy);
+				for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+					double dx = xs[i] - x;
+					double dy = ys[i] - y;
+					double d2 = dx * dx + dy * dy;
+
+					// Reservoir sampling of one facility
+					if (d2 >= lower2 && d2 <= upper2 && rnd.nextInt(++n) == 0)
+						selected = facilities[i];
+				}
+			}
+		}
+
+		return selected;
+	}
+
+	private int cellX(double x) {
+		return Math.min(nx - 1, Math.max(0, (int) ((x - minX) / cellSize)));
+	}
+
+	private int cellY(double y) {
+		return Math.min(ny - 1, Math.max(0, (int) ((y - minY) / cellSize)));
+	}
+
+	private int cell(int cx, int cy) {
+		return cy * nx + cx;
+	}
+
+}
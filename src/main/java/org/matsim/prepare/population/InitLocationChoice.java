@@ -4,11 +4,8 @@ import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.index.strtree.STRtree;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Activity;
@@ -18,17 +15,16 @@ import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.ShpOptions;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.core.router.TripStructureUtils;
-import org.matsim.core.utils.geometry.CoordUtils;
-import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.facilities.ActivityFacilities;
 import org.matsim.facilities.ActivityFacility;
 import org.matsim.facilities.FacilitiesUtils;
 import org.matsim.facilities.MatsimFacilitiesReader;
+import org.matsim.prepare.ActivityLinkIndex;
+import org.matsim.prepare.NetworkSnapshot;
 import org.matsim.prepare.RunOpenBerlinCalibration;
 import org.matsim.run.RunOpenBerlinScenario;
 import org.opengis.feature.simple.SimpleFeature;
@@ -39,8 +35,6 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
-import static org.matsim.prepare.ExtractFacilityShp.CreateMATSimFacilities.IGNORED_LINK_TYPES;
-
 @CommandLine.Command(
 	name = "init-location-choice",
 	description = "Assign initial locations to agents"
@@ -54,6 +48,7 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 	private static final double DETOUR_FACTOR = 1.56;
 
 	private static final Logger log = LogManager.getLogger(InitLocationChoice.class);
+	private static final String RANDOM_STREAM = "init-location-choice";
 
 	@CommandLine.Option(names = "--input", description = "Path to input population.")
 	private Path input;
@@ -79,11 +74,22 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 	@CommandLine.Option(names = "--seed", description = "Seed used to sample locations", defaultValue = "1")
 	private long seed;
 
+	@CommandLine.Option(names = "--threads", description = "Number of threads to process persons")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	@CommandLine.Option(names = "--weighted-commute", description = "Sample commute destinations weighted by the number of commuters", defaultValue = "false")
+	private boolean weightedCommute;
+
+	@CommandLine.Option(names = "--single-pass", description = "Read the population once and generate all choices in one pass", defaultValue = "false")
+	private boolean singlePass;
+
 	@CommandLine.Mixin
 	private ShpOptions shp;
 
 
-	private Map<String, STRtree> trees;
+	private Map<String, FacilityIndex> indices;
+
+	private ZoneFacilities workPlaces;
 
 	private Long2ObjectMap<SimpleFeature> zones;
 
@@ -91,9 +97,14 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 
 	private Network network;
 
+	private ActivityLinkIndex linkIndex;
+
 	private ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
 
-	private ThreadLocal<Context> ctxs;
+	/**
+	 * Index of the plan that is currently generated.
+	 */
+	private int choice;
 
 	private AtomicLong total = new AtomicLong();
 
@@ -120,10 +131,8 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 			return 2;
 		}
 
-		Network completeNetwork = NetworkUtils.readNetwork(networkPath.toString());
-		TransportModeNetworkFilter filter = new TransportModeNetworkFilter(completeNetwork);
-		network = NetworkUtils.createNetwork();
-		filter.filter(network, Set.of(TransportMode.car));
+		network = NetworkSnapshot.readCarNetwork(networkPath.toString());
+		linkIndex = new ActivityLinkIndex(network);
 
 		zones = new Long2ObjectOpenHashMap<>(shp.readFeatures().stream()
 			.collect(Collectors.toMap(ft -> Long.parseLong((String) ft.getAttribute("ARS")), ft -> ft)));
@@ -140,34 +149,31 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 
 		log.info("Found activity types: {}", activities);
 
-		trees = new HashMap<>();
+		indices = new HashMap<>();
 		for (String act : activities) {
-
 			NavigableMap<Id<ActivityFacility>, ActivityFacility> afs = facilities.getFacilitiesForActivityType(act);
-			for (ActivityFacility af : afs.values()) {
-				STRtree index = trees.computeIfAbsent(act, k -> new STRtree());
-				index.insert(MGC.coord2Point(af.getCoord()).getEnvelopeInternal(), af);
-			}
+			if (!afs.isEmpty())
+				indices.put(act, new FacilityIndex(afs.values()));
 		}
 
-		// Build all trees
-		trees.values().forEach(STRtree::build);
+		workPlaces = new ZoneFacilities(zones, new ArrayList<>(facilities.getFacilitiesForActivityType("work").values()));
 
 		log.info("Using input file: {}", input);
 
+		if (singlePass)
+			return generateSinglePass();
+
 		List<Population> populations = new ArrayList<>();
 
 		for (int i = 0; i < k; i++) {
 
-			long seed = this.seed + i;
-
-			log.info("Generating plan {} with seed {}", i , seed);
+			log.info("Generating plan {}", i);
 
-			ctxs = ThreadLocal.withInitial(() -> new Context(seed));
-			commuter = new CommuterAssignment(zones, commuterPath, sample);
+			choice = i;
+			commuter = new CommuterAssignment(zones, commuterPath, sample, weightedCommute);
 
 			Population population = PopulationUtils.readPopulation(input.toString());
-			ParallelPersonAlgorithmUtils.run(population, 8, this);
+			ParallelPersonAlgorithmUtils.run(population, threads, this);
 
 			populations.add(population);
 
@@ -201,16 +207,64 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 		return 0;
 	}
 
+	/**
+	 * Generate all k choices while reading the population only once. Each choice uses its own random generator and commuter assignment,
+	 * the same as the choices generated by separate passes.
+	 */
+	private Integer generateSinglePass() {
+
+		log.info("Generating {} plans", k);
+
+		CommuterAssignment[] commuters = new CommuterAssignment[k];
+		commuters[0] = new CommuterAssignment(zones, commuterPath, sample, weightedCommute);
+		for (int i = 1; i < k; i++) {
+			commuters[i] = new CommuterAssignment(commuters[0]);
+		}
+
+		Population population = PopulationUtils.readPopulation(input.toString());
+		ParallelPersonAlgorithmUtils.run(population, threads, person -> {
+
+			// Copies need to be created before locations of the first plan are assigned
+			Plan plan = person.getPlans().get(0);
+			List<Plan> copies = new ArrayList<>();
+			for (int i = 1; i < k; i++) {
+				Plan copy = PopulationUtils.createPlan();
+				PopulationUtils.copyFromTo(plan, copy);
+				copies.add(copy);
+			}
+
+			assignLocations(person, person.getPlans(), new Context(seed, person, 0), commuters[0]);
+
+			for (int i = 1; i < k; i++) {
+				Plan copy = copies.get(i - 1);
+				assignLocations(person, List.of(copy), new Context(seed, person, i), commuters[i]);
+				person.addPlan(copy);
+			}
+		});
+
+		log.info("Processed {} activities with {} warnings", total.get(), warning.get());
+
+		PopulationUtils.writePopulation(population, output.toString());
+
+		return 0;
+	}
+
 	@Override
 	public void run(Person person) {
+		assignLocations(person, person.getPlans(), new Context(seed, person, choice), commuter);
+	}
+
+	/**
+	 * Assign locations to all unassigned activities of the given plans.
+	 */
+	private void assignLocations(Person person, List<? extends Plan> plans, Context ctx, CommuterAssignment commuter) {
 
 		Coord homeCoord = Attributes.getHomeCoord(person);
 
 		// Activities that only occur on one place per person
 		Map<String, ActivityFacility> fixedLocations = new HashMap<>();
-		Context ctx = ctxs.get();
 
-		for (Plan plan : person.getPlans()) {
+		for (Plan plan : plans) {
 			List<Activity> acts = TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
 
 			// keep track of the current coordinate
@@ -238,29 +292,18 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 
 					if (location == null && type.equals("work")) {
 						// sample work commute
-						location = sampleCommute(ctx, dist, lastCoord, (long) person.getAttributes().getAttribute(Attributes.ARS));
+						location = sampleCommute(ctx, commuter, dist, lastCoord, (long) person.getAttributes().getAttribute(Attributes.ARS));
 					}
 
-					if (location == null && trees.containsKey(type)) {
-						// Needed for lambda
-						final Coord refCoord = lastCoord;
-
-						List<ActivityFacility> query = trees.get(type).query(MGC.coord2Point(lastCoord).buffer(dist * 1.2).getEnvelopeInternal());
+					if (location == null && indices.containsKey(type)) {
+						FacilityIndex index = indices.get(type);
 
 						// Distance should be within the bounds
-						List<ActivityFacility> res = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1)).toList();
-
-						if (!res.isEmpty()) {
-							location = query.get(ctx.rnd.nextInt(query.size()));
-						}
+						location = index.sample(ctx.rnd, lastCoord, lowerBound(dist, 1), upperBound(dist, 1));
 
 						// Try with larger bounds again
-						if (location == null) {
-							res = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1.2)).toList();
-							if (!res.isEmpty()) {
-								location = query.get(ctx.rnd.nextInt(query.size()));
-							}
-						}
+						if (location == null)
+							location = index.sample(ctx.rnd, lastCoord, lowerBound(dist, 1.2), upperBound(dist, 1.2));
 					}
 
 					if (location == null) {
@@ -271,7 +314,7 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 						lastCoord = c;
 
 						// An activity with type could not be put into correct facility.
-						if (trees.containsKey(type)) {
+						if (indices.containsKey(type)) {
 							warning.incrementAndGet();
 						}
 
@@ -296,20 +339,18 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 	/**
 	 * Sample work place by using commute and distance information.
 	 */
-	private ActivityFacility sampleCommute(Context ctx, double dist, Coord refCoord, long ars) {
-
-		STRtree index = trees.get("work");
+	private ActivityFacility sampleCommute(Context ctx, CommuterAssignment commuter, double dist, Coord refCoord, long ars) {
 
 		ActivityFacility workPlace = null;
 
 		// Only larger distances can be commuters to other zones
 		if (dist > 3000) {
-			workPlace = commuter.selectTarget(ctx.rnd, ars, dist, MGC.coord2Point(refCoord), zone -> sampleZone(index, dist, refCoord, zone, ctx.rnd));
+			workPlace = commuter.selectTarget(ctx.rnd, ars, dist, refCoord, zone -> sampleZone(dist, refCoord, zone, ctx.rnd));
 		}
 
 		if (workPlace == null) {
 			// Try selecting within same zone
-			workPlace = sampleZone(index, dist, refCoord, (Geometry) zones.get(ars).getDefaultGeometry(), ctx.rnd);
+			workPlace = sampleZone(dist, refCoord, ars, ctx.rnd);
 		}
 
 		return workPlace;
@@ -317,58 +358,48 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 
 	/**
 	 * Sample a coordinate for which the associated link is not one of the ignored types.
+	 * If the nearest link is ignored, the coordinate is moved onto the nearest valid link.
 	 */
 	private Coord sampleLink(SplittableRandom rnd, double dist, Coord origin) {
 
-		Coord coord = null;
-		for (int i = 0; i < 500; i++) {
-			coord = rndCoord(rnd, dist, origin);
-			Link link = NetworkUtils.getNearestLink(network, coord);
-			if (!IGNORED_LINK_TYPES.contains(NetworkUtils.getType(link)))
-				break;
-		}
+		Coord coord = rndCoord(rnd, dist, origin);
+		Link link = NetworkUtils.getNearestLink(network, coord);
+		if (linkIndex.isValid(link))
+			return coord;
 
-		return coord;
+		Coord c = linkIndex.getNearestCoord(coord);
+		return new Coord(RunOpenBerlinCalibration.roundNumber(c.getX()), RunOpenBerlinCalibration.roundNumber(c.getY()));
 	}
 
 	/**
-	 * Only samples randomly from the zone, ignoring the distance.
+	 * Samples a work place within the zone, which is within the distance bounds.
 	 */
-	private ActivityFacility sampleZone(STRtree index, double dist, Coord refCoord, Geometry zone, SplittableRandom rnd) {
-
-		ActivityFacility location = null;
-
-		List<ActivityFacility> query = index.query(MGC.coord2Point(refCoord).buffer(dist * 1.2).getEnvelopeInternal());
-
-		query = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1)).collect(Collectors.toList());
-
-		while (!query.isEmpty()) {
-			ActivityFacility af = query.remove(rnd.nextInt(query.size()));
-			if (zone.contains(MGC.coord2Point(af.getCoord()))) {
-				location = af;
-				break;
-			}
-		}
-
-		return location;
+	private ActivityFacility sampleZone(double dist, Coord refCoord, long zone, SplittableRandom rnd) {
+		return workPlaces.sample(rnd, zone, refCoord, lowerBound(dist, 1), upperBound(dist, 1));
 	}
 
 	/**
-	 * General logic to filter coordinate within target distance.
+	 * Lower bound of the distance to accept a location for the target distance.
 	 */
-	private boolean checkDistanceBound(double target, Coord refCoord, Coord other, double factor) {
-		double lower = target * 0.8 * (2 - factor);
-		double upper = target * 1.15 * factor;
+	private static double lowerBound(double target, double factor) {
+		return target * 0.8 * (2 - factor);
+	}
 
-		double dist = CoordUtils.calcEuclideanDistance(refCoord, other);
-		return dist >= lower && dist <= upper;
+	/**
+	 * Upper bound of the distance to accept a location for the target distance.
+	 */
+	private static double upperBound(double target, double factor) {
+		return target * 1.15 * factor;
 	}
 
+	/**
+	 * Context for generating one plan of a person, the random generator does not depend on the thread.
+	 */
 	private static final class Context {
 		private final SplittableRandom rnd;
 
-		Context(long seed) {
-			rnd = new SplittableRandom(seed);
+		Context(long seed, Person person, int choice) {
+			rnd = PersonRandom.get(seed, RANDOM_STREAM, person.getId(), choice);
 		}
 	}
 
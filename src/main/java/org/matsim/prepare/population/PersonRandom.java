@@ -0,0 +1,58 @@
+package org.matsim.prepare.population;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random generators that only depend on the seed, the stream, the person and the plan index.
+ * Person algorithms using these generators produce the same output regardless of the number of threads and the order in which persons are processed.
+ * Each algorithm uses its own stream, so that the numbers drawn by different steps of the population creation are independent,
+ * even if they are run with the same seed.
+ */
+public final class PersonRandom {
+
+	private PersonRandom() {
+	}
+
+	/**
+	 * Create a random generator for one plan of a person.
+	 *
+	 * @param stream name of the stream, usually the name of the command using it
+	 */
+	public static SplittableRandom get(long seed, String stream, Id<Person> person, int plan) {
+		return new SplittableRandom(mix(mix(mix(seed ^ hash(stream)) ^ hash(person.toString())) + plan));
+	}
+
+	/**
+	 * Create a random generator for a person.
+	 *
+	 * @param stream name of the stream, usually the name of the command using it
+	 */
+	public static SplittableRandom get(long seed, String stream, Id<Person> person) {
+		return get(seed, stream, person, 0);
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the string, for ids this in contrast to the id index does not depend on the order in which ids were created.
+	 */
+	private static long hash(String id) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			h ^= id.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Finalizer of SplitMix64, so that similar inputs result in uncorrelated seeds.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+}
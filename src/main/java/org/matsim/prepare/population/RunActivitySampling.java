@@ -1,12 +1,7 @@
 package org.matsim.prepare.population;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntList;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
@@ -24,8 +19,6 @@ import picocli.CommandLine;
 
 import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 @CommandLine.Command(
 	name = "activity-sampling",
@@ -34,13 +27,8 @@ import java.util.stream.Stream;
 public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 
 	private static final Logger log = LogManager.getLogger(RunActivitySampling.class);
+	private static final String RANDOM_STREAM = "activity-sampling";
 	private final CsvOptions csv = new CsvOptions(CSVFormat.Predefined.Default);
-	private final Map<Key, IntList> groups = new HashMap<>();
-	private final Int2ObjectMap<CSVRecord> persons = new Int2ObjectOpenHashMap<>();
-	/**
-	 * Maps person index to list of activities.
-	 */
-	private final Int2ObjectMap<List<CSVRecord>> activities = new Int2ObjectOpenHashMap<>();
 	@CommandLine.Option(names = "--input", description = "Path to input population", required = true)
 	private Path input;
 	@CommandLine.Option(names = "--output", description = "Output path for population", required = true)
@@ -51,10 +39,13 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 	private Path activityPath;
 	@CommandLine.Option(names = "--seed", description = "Seed used to sample plans", defaultValue = "1")
 	private long seed;
-	private ThreadLocal<Context> ctxs;
+	@CommandLine.Option(names = "--threads", description = "Number of threads to process persons")
+	private int threads = Runtime.getRuntime().availableProcessors();
 
 	private PopulationFactory factory;
 
+	private SurveyStore survey;
+
 	public static void main(String[] args) {
 		new RunActivitySampling().execute(args);
 	}
@@ -64,18 +55,14 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 
 		Population population = PopulationUtils.readPopulation(input.toString());
 
-		try (CSVParser parser = csv.createParser(personsPath)) {
-			buildSubgroups(parser);
+		try (CSVParser persons = csv.createParser(personsPath);
+			 CSVParser activities = csv.createParser(activityPath)) {
+			survey = new SurveyStore(persons, activities);
 		}
 
-		try (CSVParser parser = csv.createParser(activityPath)) {
-			readActivities(parser);
-		}
-
-		ctxs = ThreadLocal.withInitial(() -> new Context(new SplittableRandom(seed)));
 		factory = population.getFactory();
 
-		ParallelPersonAlgorithmUtils.run(population, 8, this);
+		ParallelPersonAlgorithmUtils.run(population, threads, this);
 
 		PopulationUtils.writePopulation(population, output.toString());
 
@@ -94,83 +81,6 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 		return 0;
 	}
 
-	/**
-	 * Create subpopulations for sampling.
-	 */
-	private void buildSubgroups(CSVParser csv) {
-
-		int i = 0;
-
-		for (CSVRecord r : csv) {
-
-			int idx = Integer.parseInt(r.get("idx"));
-			int regionType = Integer.parseInt(r.get("region_type"));
-			String gender = r.get("gender");
-			String employment = r.get("employment");
-			int age = Integer.parseInt(r.get("age"));
-
-			Stream<Key> keys = createKey(gender, age, regionType, employment);
-			keys.forEach(key -> groups.computeIfAbsent(key, (k) -> new IntArrayList()).add(idx));
-			persons.put(idx, r);
-			i++;
-		}
-
-		log.info("Read {} persons from csv.", i);
-	}
-
-	private void readActivities(CSVParser csv) {
-
-		int currentId = -1;
-		List<CSVRecord> current = null;
-
-		int i = 0;
-		for (CSVRecord r : csv) {
-
-			int pId = Integer.parseInt(r.get("p_id"));
-
-			if (pId != currentId) {
-				if (current != null)
-					activities.put(currentId, current);
-
-				currentId = pId;
-				current = new ArrayList<>();
-			}
-
-			current.add(r);
-			i++;
-		}
-
-		if (current != null && !current.isEmpty()) {
-			activities.put(currentId, current);
-		}
-
-		log.info("Read {} activities for {} persons", i, activities.size());
-	}
-
-	private Stream<Key> createKey(String gender, int age, int regionType, String employment) {
-		if (age < 6) {
-			return IntStream.rangeClosed(0, 5).mapToObj(i -> new Key(null, i, regionType, null));
-		}
-		if (age <= 10) {
-			return IntStream.rangeClosed(6, 10).mapToObj(i -> new Key(null, i, regionType, null));
-		}
-		if (age < 18) {
-			return IntStream.rangeClosed(11, 18).mapToObj(i -> new Key(gender, i, regionType, null));
-		}
-
-		Boolean isEmployed = age > 65 ? null : !employment.equals("unemployed");
-		int min = Math.max(18, age - 6);
-		int max = Math.min(65, age + 6);
-
-		// larger groups for older people
-		if (age > 65) {
-			min = Math.max(66, age - 10);
-			max = Math.min(99, age + 10);
-		}
-
-		return IntStream.rangeClosed(min, max).mapToObj(i -> new Key(gender, i, regionType, isEmployed));
-	}
-
 	private Key createKey(Person person) {
 
 		Integer age = PersonUtils.getAge(person);
@@ -191,15 +101,37 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 		return new Key(gender, age, regionType, employed);
 	}
 
+	/**
+	 * Find survey persons that match the key. Persons match if their age is within a range around the age of the key.
+	 */
+	static SurveyStore.Range findSubgroup(SurveyStore survey, Key key) {
+
+		SurveyStore.Group group = new SurveyStore.Group(key.gender, key.regionType, key.employed);
+		int age = key.age;
+
+		if (age < 6)
+			return survey.find(group, 0, 5);
+		if (age <= 10)
+			return survey.find(group, 6, 10);
+		if (age < 18)
+			return survey.find(group, 11, 17);
+
+		// larger groups for older people
+		if (age > 65)
+			return age <= 99 ? survey.find(group, Math.max(66, age - 10), age + 10) : new SurveyStore.Range(0, 0);
+
+		return survey.find(group, Math.max(18, age - 6), Math.min(65, age + 6));
+	}
+
 	@Override
 	public void run(Person person) {
 
-		SplittableRandom rnd = ctxs.get().rnd;
+		SplittableRandom rnd = PersonRandom.get(seed, RANDOM_STREAM, person.getId());
 
 		Key key = createKey(person);
 
-		IntList subgroup = groups.get(key);
-		if (subgroup == null) {
+		SurveyStore.Range subgroup = findSubgroup(survey, key);
+		if (subgroup.size() == 0) {
 			log.error("No subgroup found for key {}", key);
 			throw new IllegalStateException("Invalid entry");
 		}
@@ -208,37 +140,31 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 			log.warn("Group {} has low sample size: {}", key, subgroup.size());
 		}
 
-		int idx = subgroup.getInt(rnd.nextInt(subgroup.size()));
-		CSVRecord row = persons.get(idx);
+		int row = survey.getPerson(subgroup.from() + rnd.nextInt(subgroup.size()));
 
-		PersonUtils.setCarAvail(person, row.get("car_avail").equals("True") ? "always" : "never");
-		PersonUtils.setLicence(person, row.get("driving_license").toLowerCase());
+		PersonUtils.setCarAvail(person, survey.carAvail[row] ? "always" : "never");
+		PersonUtils.setLicence(person, survey.drivingLicense[row]);
 
-		person.getAttributes().putAttribute(Attributes.BIKE_AVAIL, row.get("bike_avail").equals("True") ? "always" : "never");
-		person.getAttributes().putAttribute(Attributes.PT_ABO_AVAIL, row.get("pt_abo_avail").equals("True") ? "always" : "never");
+		person.getAttributes().putAttribute(Attributes.BIKE_AVAIL, survey.bikeAvail[row] ? "always" : "never");
+		person.getAttributes().putAttribute(Attributes.PT_ABO_AVAIL, survey.ptAboAvail[row] ? "always" : "never");
 
-		person.getAttributes().putAttribute(Attributes.EMPLOYMENT, row.get("employment"));
-		person.getAttributes().putAttribute(Attributes.RESTRICTED_MOBILITY, row.get("restricted_mobility").equals("True"));
-		person.getAttributes().putAttribute(Attributes.ECONOMIC_STATUS, row.get("economic_status"));
-		person.getAttributes().putAttribute(Attributes.HOUSEHOLD_SIZE, Integer.parseInt(row.get("n_persons")));
+		person.getAttributes().putAttribute(Attributes.EMPLOYMENT, survey.employment[row]);
+		person.getAttributes().putAttribute(Attributes.RESTRICTED_MOBILITY, survey.restrictedMobility[row]);
+		person.getAttributes().putAttribute(Attributes.ECONOMIC_STATUS, survey.economicStatus[row]);
+		person.getAttributes().putAttribute(Attributes.HOUSEHOLD_SIZE, survey.nPersons[row]);
 
 
-		String mobile = row.get("mobile_on_day");
+		String mobile = survey.mobileOnDay[row];
 
 		// ensure mobile agents have a valid plan
-		switch (mobile.toLowerCase()) {
+		switch (mobile) {
 
 			case "true" -> {
-				List<CSVRecord> activities = this.activities.get(idx);
-
-				if (activities == null)
-					throw new AssertionError("No activities for mobile person " + idx);
-
-				if (activities.size() == 0)
-					throw new AssertionError("Activities for mobile agent can not be empty.");
+				if (survey.actStart[row] == survey.actEnd[row])
+					throw new AssertionError("No activities for mobile person in row " + row);
 
 				person.removePlan(person.getSelectedPlan());
-				Plan plan = createPlan(Attributes.getHomeCoord(person), activities, rnd);
+				Plan plan = createPlan(Attributes.getHomeCoord(person), survey.actStart[row], survey.actEnd[row], rnd);
 
 				person.addPlan(plan);
 				person.setSelectedPlan(plan);
@@ -268,7 +194,10 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 		return minutes * 60 + rnd.nextInt(1200) - 600;
 	}
 
-	private Plan createPlan(Coord homeCoord, List<CSVRecord> activities, SplittableRandom rnd) {
+	/**
+	 * Create a plan from the survey activities in [start, end).
+	 */
+	private Plan createPlan(Coord homeCoord, int start, int end, SplittableRandom rnd) {
 		Plan plan = factory.createPlan();
 
 		Activity a = null;
@@ -280,24 +209,24 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 		double homeDist = 0;
 		boolean arrivedHome = false;
 
-		for (int i = 0; i < activities.size(); i++) {
+		for (int i = 0; i < end - start; i++) {
 
-			CSVRecord act = activities.get(i);
+			int act = start + i;
 
-			String actType = act.get("type");
+			String actType = survey.type[act];
 
 			// First and last activities that are other are changed to home
-			if (actType.equals("other") && (i == 0 || i == activities.size() - 1))
+			if (actType.equals("other") && (i == 0 || i == end - start - 1))
 				actType = "home";
 
-			int duration = Integer.parseInt(act.get("duration"));
+			int duration = survey.duration[act];
 
 			if (actType.equals("home")) {
 				a = factory.createActivityFromCoord("home", homeCoord);
 			} else
 				a = factory.createActivityFromLinkId(actType, Id.createLinkId("unassigned"));
 
-			double legDuration = Double.parseDouble(act.get("leg_duration"));
+			double legDuration = survey.legDuration[act];
 
 			if (plan.getPlanElements().isEmpty()) {
 				// Add little
@@ -324,7 +253,7 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 				startTime += seconds;
 			}
 
-			double legDist = Double.parseDouble(act.get("leg_dist"));
+			double legDist = survey.legDist[act];
 
 			if (i > 0) {
 				a.getAttributes().putAttribute("orig_dist", legDist);
@@ -332,7 +261,7 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 			}
 
 			if (!plan.getPlanElements().isEmpty()) {
-				lastMode = act.get("leg_mode");
+				lastMode = survey.legMode[act];
 
 				// other mode is initialized as walk
 				if (lastMode.equals("other"))
@@ -379,10 +308,7 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 	/**
 	 * Key used for sampling activities.
 	 */
-	private record Key(String gender, int age, int regionType, Boolean employed) {
-	}
-
-	private record Context(SplittableRandom rnd) {
+	record Key(String gender, int age, int regionType, Boolean employed) {
 	}
 
 }
@@ -0,0 +1,241 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Survey persons and their activities, parsed once and stored in columns. Categorical values are interned.
+ * Persons are additionally sorted by their {@link Group} and age, so that all persons of a group within an age range
+ * form one contiguous {@link Range}, without storing persons multiple times.
+ */
+final class SurveyStore {
+
+	private static final Logger log = LogManager.getLogger(SurveyStore.class);
+
+	/**
+	 * Attributes of persons, which need to match exactly.
+	 */
+	record Group(String gender, int regionType, Boolean employed) {
+	}
+
+	/**
+	 * Range of positions in the sorted persons, which can be resolved with {@link #getPerson(int)}.
+	 */
+	record Range(int from, int to) {
+		int size() {
+			return to - from;
+		}
+	}
+
+	// Person columns, indexed by row
+
+	final int[] age;
+	final boolean[] carAvail;
+	final String[] drivingLicense;
+	final boolean[] bikeAvail;
+	final boolean[] ptAboAvail;
+	final String[] employment;
+	final boolean[] restrictedMobility;
+	final String[] economicStatus;
+	final int[] nPersons;
+	final String[] mobileOnDay;
+
+	/**
+	 * Activities of person row i are stored from {@code actStart[i]} until {@code actEnd[i]}.
+	 */
+	final int[] actStart;
+	final int[] actEnd;
+
+	// Activity columns
+
+	final String[] type;
+	final int[] duration;
+	final double[] legDuration;
+	final double[] legDist;
+	final String[] legMode;
+
+	/**
+	 * Person rows sorted by group and age, and their ages.
+	 */
+	private final int[] sorted;
+	private final int[] sortedAge;
+	private final Map<Group, Range> groups = new HashMap<>();
+
+	SurveyStore(CSVParser persons, CSVParser activities) {
+
+		// Activities are grouped by person id
+		Int2LongMap actRanges = new Int2LongOpenHashMap();
+		List<String> type = new ArrayList<>();
+		IntList duration = new IntArrayList();
+		DoubleArrayList legDuration = new DoubleArrayList();
+		DoubleArrayList legDist = new DoubleArrayList();
+		List<String> legMode = new ArrayList<>();
+
+		int currentId = -1;
+		int start = 0;
+		for (CSVRecord r : activities) {
+
+			int pId = Integer.parseInt(r.get("p_id"));
+			if (pId != currentId) {
+				if (currentId != -1)
+					actRanges.put(currentId, range(start, type.size()));
+
+				currentId = pId;
+				start = type.size();
+			}
+
+			type.add(r.get("type").intern());
+			duration.add(Integer.parseInt(r.get("duration")));
+			legDuration.add(Double.parseDouble(r.get("leg_duration")));
+			legDist.add(Double.parseDouble(r.get("leg_dist")));
+			legMode.add(r.get("leg_mode").intern());
+		}
+
+		if (currentId != -1)
+			actRanges.put(currentId, range(start, type.size()));
+
+		this.type = type.toArray(String[]::new);
+		this.duration = duration.toIntArray();
+		this.legDuration = legDuration.toDoubleArray();
+		this.legDist = legDist.toDoubleArray();
+		this.legMode = legMode.toArray(String[]::new);
+
+		log.info("Read {} activities for {} persons", this.type.length, actRanges.size());
+
+		List<CSVRecord> rows = persons.getRecords();
+		int n = rows.size();
+
+		this.age = new int[n];
+		this.carAvail = new boolean[n];
+		this.drivingLicense = new String[n];
+		this.bikeAvail = new boolean[n];
+		this.ptAboAvail = new boolean[n];
+		this.employment = new String[n];
+		this.restrictedMobility = new boolean[n];
+		this.economicStatus = new String[n];
+		this.nPersons = new int[n];
+		this.mobileOnDay = new String[n];
+		this.actStart = new int[n];
+		this.actEnd = new int[n];
+
+		Group[] group = new Group[n];
+		Object2IntMap<Group> groupIds = new Object2IntOpenHashMap<>();
+
+		for (int i = 0; i < n; i++) {
+			CSVRecord r = rows.get(i);
+
+			age[i] = Integer.parseInt(r.get("age"));
+			carAvail[i] = r.get("car_avail").equals("True");
+			drivingLicense[i] = r.get("driving_license").toLowerCase().intern();
+			bikeAvail[i] = r.get("bike_avail").equals("True");
+			ptAboAvail[i] = r.get("pt_abo_avail").equals("True");
+			employment[i] = r.get("employment").intern();
+			restrictedMobility[i] = r.get("restricted_mobility").equals("True");
+			economicStatus[i] = r.get("economic_status").intern();
+			nPersons[i] = Integer.parseInt(r.get("n_persons"));
+			mobileOnDay[i] = r.get("mobile_on_day").toLowerCase().intern();
+
+			long acts = actRanges.getOrDefault(Integer.parseInt(r.get("idx")), range(0, 0));
+			actStart[i] = (int) (acts >>> 32);
+			actEnd[i] = (int) acts;
+
+			group[i] = createGroup(r.get("gender"), age[i], Integer.parseInt(r.get("region_type")), employment[i]);
+			groupIds.putIfAbsent(group[i], groupIds.size());
+		}
+
+		log.info("Read {} persons in {} groups", n, groupIds.size());
+
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = groupIds.getInt(group[i]);
+		}
+
+		this.sorted = new int[n];
+		for (int i = 0; i < n; i++) {
+			sorted[i] = i;
+		}
+
+		IntArrays.quickSort(sorted, (a, b) -> {
+			int cmp = Integer.compare(ids[a], ids[b]);
+			return cmp != 0 ? cmp : Integer.compare(age[a], age[b]);
+		});
+
+		this.sortedAge = new int[n];
+		for (int i = 0; i < n; i++) {
+			sortedAge[i] = age[sorted[i]];
+		}
+
+		for (int i = 0; i < n; ) {
+			int j = i;
+			while (j < n && ids[sorted[j]] == ids[sorted[i]])
+				j++;
+
+			groups.put(group[sorted[i]], new Range(i, j));
+			i = j;
+		}
+	}
+
+	private static long range(int from, int to) {
+		return ((long) from << 32) | to;
+	}
+
+	/**
+	 * Group of a survey person. Gender is only relevant for persons older than 10 and employment only for persons between 18 and 65.
+	 */
+	static Group createGroup(String gender, int age, int regionType, String employment) {
+		if (age <= 10)
+			return new Group(null, regionType, null);
+
+		if (age < 18 || age > 65)
+			return new Group(gender, regionType, null);
+
+		return new Group(gender, regionType, !employment.equals("unemployed"));
+	}
+
+	/**
+	 * Find all persons of a group with age in [minAge, maxAge].
+	 */
+	Range find(Group group, int minAge, int maxAge) {
+
+		Range r = groups.get(group);
+		if (r == null || minAge > maxAge)
+			return new Range(0, 0);
+
+		return new Range(lowerBound(r, minAge), lowerBound(r, maxAge + 1));
+	}
+
+	/**
+	 * First position in the range with an age greater or equal to the given one.
+	 */
+	private int lowerBound(Range r, int age) {
+		int lo = r.from;
+		int hi = r.to;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sortedAge[mid] < age)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Person row at a position of a {@link Range}.
+	 */
+	int getPerson(int pos) {
+		return sorted[pos];
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.facilities.ActivityFacility;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Facilities grouped by the zone that contains them. Each facility is assigned once when this index is created,
+ * so that sampling from a zone does not require any point-in-polygon tests.
+ */
+final class ZoneFacilities {
+
+	/**
+	 * Index of each zone. Facilities of zone i are stored from {@code start[i]} until {@code start[i + 1]}.
+	 */
+	private final Long2IntMap index = new Long2IntOpenHashMap();
+	private final int[] start;
+
+	private final ActivityFacility[] facilities;
+	private final double[] xs;
+	private final double[] ys;
+
+	ZoneFacilities(Long2ObjectMap<SimpleFeature> zones, List<? extends ActivityFacility> facilities) {
+
+		STRtree tree = new STRtree();
+		for (Long2ObjectMap.Entry<SimpleFeature> e : zones.long2ObjectEntrySet()) {
+			Geometry geom = (Geometry) e.getValue().getDefaultGeometry();
+			tree.insert(geom.getEnvelopeInternal(), new Zone(e.getLongKey(), PreparedGeometryFactory.prepare(geom)));
+		}
+
+		tree.build();
+
+		// Zone of each facility, facilities outside all zones are not stored
+		long[] assigned = facilities.parallelStream().mapToLong(af -> {
+			Point p = MGC.coord2Point(af.getCoord());
+			List<Zone> candidates = tree.query(p.getEnvelopeInternal());
+			for (Zone z : candidates) {
+				if (z.geom.contains(p))
+					return z.ars;
+			}
+			return -1;
+		}).toArray();
+
+		// Counting sort of the facilities by zone
+		int[] zoneIdx = new int[assigned.length];
+		IntList counts = new IntArrayList();
+		for (int i = 0; i < assigned.length; i++) {
+			if (assigned[i] == -1) {
+				zoneIdx[i] = -1;
+				continue;
+			}
+
+			int idx = index.getOrDefault(assigned[i], -1);
+			if (idx == -1) {
+				idx = counts.size();
+				index.put(assigned[i], idx);
+				counts.add(0);
+			}
+
+			counts.set(idx, counts.getInt(idx) + 1);
+			zoneIdx[i] = idx;
+		}
+
+		this.start = new int[counts.size() + 1];
+		for (int i = 0; i < counts.size(); i++) {
+			start[i + 1] = start[i] + counts.getInt(i);
+		}
+
+		int n = start[counts.size()];
+		this.facilities = new ActivityFacility[n];
+		this.xs = new double[n];
+		this.ys = new double[n];
+
+		int[] pos = new int[counts.size()];
+		for (int i = 0; i < zoneIdx.length; i++) {
+			if (zoneIdx[i] == -1)
+				continue;
+
+			int slot = start[zoneIdx[i]] + pos[zoneIdx[i]]++;
+			ActivityFacility af = facilities.get(i);
+			this.facilities[slot] = af;
+			xs[slot] = af.getCoord().getX();
+			ys[slot] = af.getCoord().getY();
+		}
+	}
+
+	/**
+	 * Sample a facility uniformly among the facilities in a zone with a distance in [lower, upper] to the reference coordinate.
+	 *
+	 * @return null if there is no such facility
+	 */
+	ActivityFacility sample(SplittableRandom rnd, long zone, Coord ref, double lower, double upper) {
+
+		if (!index.containsKey(zone))
+			return null;
+
+		int idx = index.get(zone);
+
+		double x = ref.getX();
+		double y = ref.getY();
+		double lower2 = lower > 0 ? lower * lower : 0;
+		double upper2 = upper * upper;
+
+		ActivityFacility selected = null;
+		int n = 0;
+
+		for (int i = start[idx]; i < start[idx + 1]; i++) {
+			double dx = xs[i] - x;
+			double dy = ys[i] - y;
+			double d2 = dx * dx + dy * dy;
+
+			// Reservoir sampling of one facility
+			if (d2 >= lower2 && d2 <= upper2 && rnd.nextInt(++n) == 0)
+				selected = facilities[i];
+		}
+
+		return selected;
+	}
+
+	private record Zone(long ars, PreparedGeometry geom) {
+	}
+
+}
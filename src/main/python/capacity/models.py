@@ -391,6 +391,12 @@ def sympy_to_c(model):
     return c_code
 
 
+# Order of features in FeatureRegressor.FEATURES
+JAVA_FEATURES = ["length", "speed", "numFoes", "numLanes", "junctionSize",
+                 "dir_l", "dir_r", "dir_s", "dir_multiple_s", "dir_exclusive",
+                 "priority_lower", "priority_equal", "priority_higher", "changeNumLanes"]
+
+
 def model_to_java(name, model, scaler, df):
     """ Convert to java source file """
     import m2cgen as m2c
@@ -445,6 +451,22 @@ public final class"""
     
         return score(data, params);
     }
+
+    @Override
+    public void getData(double[] row, double[] data) {
+"""
+
+    # Same features, but read from array ordered as FeatureRegressor.FEATURES
+    for ft in features:
+        pre += "\t\t" + re.sub(r'ft\.getDouble\("(\w+)"\)', lambda m: "row[%d]" % JAVA_FEATURES.index(m.group(1)), ft)
+
+    pre += """    }
+
+    @Override
+    public double predictData(double[] data, double[] params) {
+        return score(data, params == null ? DEFAULT_PARAMS : params);
+    }
+
     """
 
     code = code.replace("score(double[] input)", "score(double[] input, double[] params)")
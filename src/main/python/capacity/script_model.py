@@ -1,5 +1,6 @@
 #!/usr/bin/env python
 
+import json
 from os import makedirs
 from os.path import join
 
@@ -18,6 +19,7 @@ import optuna
 
 from models import create_regressor, model_to_java, model_to_py
 from features import build_datasets
+from tree_model import java_to_tree
 
 #%%
 
@@ -220,6 +222,10 @@ for t in targets:
         code = model_to_java(t, m[0], scaler[t], get(None, t)[0])
         f.write(code)
 
+    # Flat tree representation, which is loaded by TreeModel.java
+    with open(join("gen_code", t.capitalize() + ".json"), "w") as f:
+        json.dump(java_to_tree(code), f)
+
     with open(join("gen_code", t + ".py"), "w") as f:
         code = model_to_py(t, m[0], scaler[t], get(None, t)[0])
         f.write("# -*- coding: utf-8 -*-\n")
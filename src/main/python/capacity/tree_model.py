@@ -0,0 +1,117 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+""" Converts generated java tree models into flat arrays, which are read by TreeModel.java """
+
+import argparse
+import json
+import re
+from os.path import basename, join, splitext
+
+RE_DATA = re.compile(r"data\[(\d+)\] = \(row\[(\d+)\] - (\S+)\) / (\S+);")
+RE_IF = re.compile(r"if \(input\[(\d+)\] (<=|>=|>) (\S+)\) \{")
+RE_LEAF = re.compile(r"var\d+ = (params\[(\d+)\]|\S+);")
+RE_RETURN = re.compile(r"return (?:(-?[\d.]+) \+ )?\(?([^()]+?)\)?(?: \* (\S+))?;")
+
+
+def java_to_tree(code):
+    """ Parse the score function and normalization of a generated model """
+
+    body = code[code.index("public void getData(double[] row"):]
+    body = body[:body.index("}")]
+
+    n = body.count("data[")
+    mean = [0.0] * n
+    std = [1.0] * n
+
+    for m in RE_DATA.finditer(body):
+        mean[int(m.group(1))] = float(m.group(3))
+        std[int(m.group(1))] = float(m.group(4))
+
+    score = code[code.index("public static double score"):]
+    lines = [line.strip() for line in score.splitlines()[1:]]
+    lines = [line for line in lines if line and not line.startswith("double var")]
+
+    tree = dict(feature=[], threshold=[], yes=[], no=[], roots=[], values=[], op=None, params="params[" in score)
+    pos = 0
+
+    def node():
+        nonlocal pos
+        line = lines[pos]
+        pos += 1
+
+        m = RE_LEAF.fullmatch(line)
+        if m:
+            if m.group(2):
+                idx = int(m.group(2))
+            else:
+                idx = len(tree["values"])
+                tree["values"].append(float(m.group(1)))
+
+            return ~idx
+
+        m = RE_IF.fullmatch(line)
+        if not m:
+            raise ValueError("Unexpected line: " + line)
+
+        idx = len(tree["feature"])
+        tree["feature"].append(int(m.group(1)))
+        tree["threshold"].append(float(m.group(3)))
+        tree["yes"].append(None)
+        tree["no"].append(None)
+
+        yes = node()
+        assert lines[pos] == "} else {", lines[pos]
+        pos += 1
+        no = node()
+        assert lines[pos] == "}", lines[pos]
+        pos += 1
+
+        # x <= t is the same as not x > t
+        op = m.group(2)
+        if op == "<=":
+            op = ">"
+            yes, no = no, yes
+
+        if tree["op"] not in (None, op):
+            raise ValueError("Mixed operators are not supported")
+
+        tree["op"] = op
+        tree["yes"][idx] = yes
+        tree["no"][idx] = no
+
+        return idx
+
+    while not lines[pos].startswith("return"):
+        tree["roots"].append(node())
+
+    m = RE_RETURN.fullmatch(lines[pos])
+    if not m:
+        raise ValueError("Unexpected return: " + lines[pos])
+
+    tree["base"] = float(m.group(1)) if m.group(1) else 0.0
+    tree["scale"] = float(m.group(3)) if m.group(3) else 1.0
+    tree["mean"] = mean
+    tree["std"] = std
+
+    if tree["params"]:
+        params = code[code.index("DEFAULT_PARAMS = {") + 18:]
+        tree["values"] = [float(x) for x in params[:params.index("}")].split(",")]
+
+    return tree
+
+
+if __name__ == "__main__":
+
+    parser = argparse.ArgumentParser(description="Convert generated java models to json")
+    parser.add_argument("input", nargs="+", help="Generated java files")
+    parser.add_argument("--output", default=".", help="Output directory")
+
+    args = parser.parse_args()
+
+    for f in args.input:
+        with open(f) as fin:
+            tree = java_to_tree(fin.read())
+
+        with open(join(args.output, splitext(basename(f))[0] + ".json"), "w") as fout:
+            json.dump(tree, fout)
@@ -0,0 +1,38 @@
+package org.matsim.prepare;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ActivityLinkIndexTest {
+
+	@Test
+	public void validLinks() {
+
+		Network network = NetworkUtils.createNetwork();
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("ali_a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("ali_b"), new Coord(1000, 0));
+		Node c = NetworkUtils.createAndAddNode(network, Id.createNodeId("ali_c"), new Coord(1000, 1000));
+
+		Link motorway = NetworkUtils.createAndAddLink(network, Id.createLinkId("ali_ab"), a, b, 1000, 30, 2000, 2);
+		NetworkUtils.setType(motorway, "motorway");
+
+		Link residential = NetworkUtils.createAndAddLink(network, Id.createLinkId("ali_bc"), b, c, 1000, 10, 600, 1);
+		NetworkUtils.setType(residential, "residential");
+
+		ActivityLinkIndex index = new ActivityLinkIndex(network);
+
+		assertThat(index.isValid(motorway)).isFalse();
+		assertThat(index.isValid(residential)).isTrue();
+
+		// The motorway is closer, but not a valid activity location
+		assertThat(index.getNearestLink(new Coord(500, 10))).isSameAs(residential);
+		assertThat(index.getNearestCoord(new Coord(500, 10))).isEqualTo(new Coord(1000, 10));
+	}
+}
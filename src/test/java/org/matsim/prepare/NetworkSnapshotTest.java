@@ -0,0 +1,141 @@
+package org.matsim.prepare;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NetworkSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Network createNetwork() {
+
+		Network network = NetworkUtils.createNetwork();
+		network.setCapacityPeriod(3600);
+		network.getAttributes().putAttribute("coordinateReferenceSystem", "EPSG:25832");
+
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("ns_a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("ns_b"), new Coord(100, 0));
+		Node c = NetworkUtils.createAndAddNode(network, Id.createNodeId("ns_c"), new Coord(100, 100, 5));
+		Node d = NetworkUtils.createAndAddNode(network, Id.createNodeId("ns_d"), new Coord(0, 100));
+		c.getAttributes().putAttribute("signal", true);
+
+		Link ab = NetworkUtils.createAndAddLink(network, Id.createLinkId("ns_ab"), a, b, 100, 13.89, 1800, 2);
+		ab.setAllowedModes(Set.of(TransportMode.car, TransportMode.ride));
+		ab.getAttributes().putAttribute("type", "highway.primary");
+		ab.getAttributes().putAttribute("allowed_speed", 13.89);
+		ab.getAttributes().putAttribute("osm_id", 42L);
+		ab.getAttributes().putAttribute("lanes", 2);
+
+		Link bc = NetworkUtils.createAndAddLink(network, Id.createLinkId("ns_bc"), b, c, 100, 8.33, 600, 1);
+		bc.setAllowedModes(Set.of(TransportMode.car));
+
+		Link cd = NetworkUtils.createAndAddLink(network, Id.createLinkId("ns_cd"), c, d, 100, 5, 300, 1);
+		cd.setAllowedModes(Set.of(TransportMode.bike, TransportMode.walk));
+		cd.getAttributes().putAttribute("type", "highway.cycleway");
+
+		return network;
+	}
+
+	@Test
+	public void carNetwork() throws Exception {
+
+		Path xml = folder.getRoot().toPath().resolve("network.xml");
+		Network source = createNetwork();
+		NetworkUtils.writeNetwork(source, xml.toString());
+
+		Network expected = NetworkUtils.createNetwork();
+		new TransportModeNetworkFilter(NetworkUtils.readNetwork(xml.toString())).filter(expected, Set.of(TransportMode.car));
+
+		// First read creates the snapshot, the second one uses it
+		Network fromXml = NetworkSnapshot.readCarNetwork(xml.toString());
+		assertThat(xml.resolveSibling("network.xml" + NetworkSnapshot.SUFFIX)).exists();
+
+		Network fromSnapshot = NetworkSnapshot.readCarNetwork(xml.toString());
+
+		assertEquals(fromXml, expected);
+		assertEquals(fromSnapshot, expected);
+
+		assertThat(fromSnapshot.getLinks()).doesNotContainKey(Id.createLinkId("ns_cd"));
+		assertThat(fromSnapshot.getNodes()).doesNotContainKey(Id.createNodeId("ns_d"));
+	}
+
+	@Test
+	public void fullNetwork() throws Exception {
+
+		Path xml = folder.getRoot().toPath().resolve("network.xml");
+		NetworkUtils.writeNetwork(createNetwork(), xml.toString());
+
+		Network expected = NetworkUtils.readNetwork(xml.toString());
+
+		NetworkSnapshot.readNetwork(xml.toString());
+		Network fromSnapshot = NetworkSnapshot.readNetwork(xml.toString());
+
+		assertEquals(fromSnapshot, expected);
+		assertThat(fromSnapshot.getAttributes().getAsMap()).isEqualTo(expected.getAttributes().getAsMap());
+		assertThat(fromSnapshot.getCapacityPeriod()).isEqualTo(expected.getCapacityPeriod());
+	}
+
+	@Test
+	public void corruptSnapshot() throws Exception {
+
+		Path xml = folder.getRoot().toPath().resolve("network.xml");
+		NetworkUtils.writeNetwork(createNetwork(), xml.toString());
+
+		Path snapshot = xml.resolveSibling("network.xml" + NetworkSnapshot.SUFFIX);
+		NetworkSnapshot.readNetwork(xml.toString());
+
+		// Keep the valid header, but cut off the rest
+		byte[] data = Files.readAllBytes(snapshot);
+		Files.write(snapshot, Arrays.copyOf(data, data.length / 2));
+
+		Network expected = NetworkUtils.readNetwork(xml.toString());
+		assertEquals(NetworkSnapshot.readNetwork(xml.toString()), expected);
+
+		// The snapshot has been written again
+		assertThat(Files.size(snapshot)).isEqualTo(data.length);
+
+		Files.writeString(snapshot, "not a snapshot");
+		assertEquals(NetworkSnapshot.readNetwork(xml.toString()), expected);
+	}
+
+	private static void assertEquals(Network actual, Network expected) {
+
+		assertThat(actual.getNodes().keySet()).isEqualTo(expected.getNodes().keySet());
+		assertThat(actual.getLinks().keySet()).isEqualTo(expected.getLinks().keySet());
+
+		for (Node node : expected.getNodes().values()) {
+			Node other = actual.getNodes().get(node.getId());
+			assertThat(other.getCoord()).isEqualTo(node.getCoord());
+			assertThat(other.getAttributes().getAsMap()).isEqualTo(node.getAttributes().getAsMap());
+		}
+
+		for (Link link : expected.getLinks().values()) {
+			Link other = actual.getLinks().get(link.getId());
+			assertThat(other.getFromNode().getId()).isEqualTo(link.getFromNode().getId());
+			assertThat(other.getToNode().getId()).isEqualTo(link.getToNode().getId());
+			assertThat(other.getLength()).isEqualTo(link.getLength());
+			assertThat(other.getFreespeed()).isEqualTo(link.getFreespeed());
+			assertThat(other.getCapacity()).isEqualTo(link.getCapacity());
+			assertThat(other.getNumberOfLanes()).isEqualTo(link.getNumberOfLanes());
+			assertThat(other.getAllowedModes()).isEqualTo(link.getAllowedModes());
+			assertThat(other.getAttributes().getAsMap()).isEqualTo(link.getAttributes().getAsMap());
+		}
+	}
+}
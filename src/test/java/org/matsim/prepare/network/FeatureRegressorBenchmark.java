@@ -0,0 +1,87 @@
+package org.matsim.prepare.network;
+
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares map based and array based prediction of the generated models and the {@link TreeModel}.
+ * The generated methods exceed the size limit for JIT compilation, so they remain interpreted with default JVM settings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FeatureRegressorBenchmark {
+
+	private static final int SIZE = 10_000;
+
+	@Param({"Capacity_priority", "Capacity_right_before_left", "Capacity_traffic_light",
+		"Speedrelative_priority", "Speedrelative_right_before_left", "Speedrelative_traffic_light"})
+	private String model;
+
+	@Param({"generated", "tree"})
+	private String impl;
+
+	private FeatureRegressor regressor;
+	private List<Object2DoubleMap<String>> maps;
+	private double[][] columns;
+	private int[] rows;
+	private double[] out;
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+			.include(FeatureRegressorBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+
+	@Setup
+	public void setup() {
+
+		regressor = impl.equals("tree") ? TreeModel.get(model) : TestFeatures.getModel(model);
+		columns = TestFeatures.createColumns(SIZE, 0);
+
+		maps = new ArrayList<>();
+		for (int i = 0; i < SIZE; i++) {
+			Object2DoubleMap<String> ft = new Object2DoubleOpenHashMap<>();
+			for (int j = 0; j < columns.length; j++) {
+				ft.put(FeatureRegressor.FEATURES.get(j), columns[j][i]);
+			}
+			maps.add(ft);
+		}
+
+		rows = new int[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			rows[i] = i;
+		}
+
+		out = new double[SIZE];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SIZE)
+	public double map() {
+		double sum = 0;
+		for (Object2DoubleMap<String> ft : maps) {
+			sum += regressor.predict(ft);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SIZE)
+	public double[] batch() {
+		regressor.predict(columns, rows, null, out);
+		return out;
+	}
+
+}
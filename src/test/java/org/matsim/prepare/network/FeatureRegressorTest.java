@@ -0,0 +1,80 @@
+package org.matsim.prepare.network;
+
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FeatureRegressorTest {
+
+	@Test
+	public void arrayPrediction() {
+
+		int size = 100;
+		double[][] columns = TestFeatures.createColumns(size, 0);
+
+		int[] rows = new int[size];
+		for (int i = 0; i < size; i++) {
+			rows[i] = i;
+		}
+
+		for (String name : new String[]{"Capacity_priority", "Capacity_right_before_left", "Capacity_traffic_light",
+			"Speedrelative_priority", "Speedrelative_right_before_left", "Speedrelative_traffic_light"}) {
+
+			FeatureRegressor model = TestFeatures.getModel(name);
+
+			double[] out = new double[size];
+			model.predict(columns, rows, null, out);
+
+			for (int i = 0; i < size; i++) {
+				Object2DoubleMap<String> ft = new Object2DoubleOpenHashMap<>();
+				for (int j = 0; j < columns.length; j++) {
+					ft.put(FeatureRegressor.FEATURES.get(j), columns[j][i]);
+				}
+
+				assertThat(out[i]).isEqualTo(model.predict(ft));
+			}
+		}
+	}
+
+	@Test
+	public void treeModel() {
+
+		int size = 1000;
+		double[][] columns = TestFeatures.createColumns(size, 1);
+
+		double[] row = new double[columns.length];
+		double[] data = new double[columns.length];
+
+		for (String name : new String[]{"Capacity_priority", "Capacity_right_before_left", "Capacity_traffic_light",
+			"Speedrelative_priority", "Speedrelative_right_before_left", "Speedrelative_traffic_light"}) {
+
+			FeatureRegressor generated = TestFeatures.getModel(name);
+			TreeModel tree = TreeModel.get(name);
+
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < columns.length; j++) {
+					row[j] = columns[j][i];
+				}
+
+				assertThat(tree.predict(row, data, null))
+					.as(name)
+					.isEqualTo(generated.predict(row, data, null));
+			}
+		}
+
+		// Modified params need to be used
+		double[] params = TreeModel.get("Speedrelative_priority").getDefaultParams();
+		for (int i = 0; i < params.length; i++) {
+			params[i] += 0.1;
+		}
+
+		for (int j = 0; j < columns.length; j++) {
+			row[j] = columns[j][0];
+		}
+
+		assertThat(TreeModel.get("Speedrelative_priority").predict(row, data, params))
+			.isEqualTo(Speedrelative_priority.INSTANCE.predict(row, data, params));
+	}
+}
@@ -0,0 +1,70 @@
+package org.matsim.prepare.network;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Id;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FeatureStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void binaryCache() throws Exception {
+
+		Path csv = folder.getRoot().toPath().resolve("features.csv");
+		Files.writeString(csv, """
+			edgeId,junctionType,length,speed,dir_l
+			a,priority,100.5,13.89,True
+			b,traffic_light,20,8.33,False
+			""");
+
+		FeatureStore store = FeatureStore.load(csv.toString());
+		assertThat(csv.resolveSibling("features.csv.bin")).exists();
+
+		FeatureStore cached = FeatureStore.load(csv.toString());
+
+		for (FeatureStore s : new FeatureStore[]{store, cached}) {
+			assertThat(s.size()).isEqualTo(2);
+
+			int a = s.getRow(Id.createLinkId("a"));
+			int b = s.getRow(Id.createLinkId("b"));
+
+			assertThat(s.getJunctionType(a)).isEqualTo("priority");
+			assertThat(s.getJunctionType(b)).isEqualTo("traffic_light");
+			assertThat(s.getColumn("length")[a]).isEqualTo(100.5);
+			assertThat(s.getColumn("speed")[b]).isEqualTo(8.33);
+			assertThat(s.getColumn("dir_l")).containsExactly(1, 0);
+			assertThat(s.getFeatures(a).getDouble("dir_l")).isEqualTo(1);
+			assertThat(s.getRow(Id.createLinkId("c"))).isEqualTo(-1);
+		}
+	}
+
+	@Test
+	public void corruptCache() throws Exception {
+
+		Path csv = folder.getRoot().toPath().resolve("features.csv");
+		Files.writeString(csv, """
+			edgeId,junctionType,length
+			a,priority,100.5
+			""");
+
+		Path cache = csv.resolveSibling("features.csv.bin");
+		FeatureStore.load(csv.toString());
+
+		// Valid header, but truncated data
+		byte[] data = Files.readAllBytes(cache);
+		Files.write(cache, Arrays.copyOf(data, data.length - 4));
+
+		FeatureStore store = FeatureStore.load(csv.toString());
+		assertThat(store.getColumn("length")).containsExactly(100.5);
+		assertThat(Files.size(cache)).isEqualTo(data.length);
+	}
+}
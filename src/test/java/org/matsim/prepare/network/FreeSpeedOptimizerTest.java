@@ -0,0 +1,113 @@
+package org.matsim.prepare.network;
+
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.application.analysis.traffic.traveltime.SampleValidationRoutes;
+import org.matsim.core.network.NetworkUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FreeSpeedOptimizerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Two primary links and one motorway link without allowed speed attribute.
+	 */
+	private static Network createNetwork() {
+
+		Network network = NetworkUtils.createNetwork();
+		Node n1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("fso1"), new Coord(0, 0));
+		Node n2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("fso2"), new Coord(100, 0));
+		Node n3 = NetworkUtils.createAndAddNode(network, Id.createNodeId("fso3"), new Coord(200, 0));
+		Node n4 = NetworkUtils.createAndAddNode(network, Id.createNodeId("fso4"), new Coord(1200, 0));
+
+		for (Link link : new Link[]{
+			NetworkUtils.createAndAddLink(network, Id.createLinkId("fso12"), n1, n2, 100, 13.89, 600, 1),
+			NetworkUtils.createAndAddLink(network, Id.createLinkId("fso23"), n2, n3, 100, 13.89, 600, 1)}) {
+			NetworkUtils.setType(link, "highway.primary");
+			link.getAttributes().putAttribute("allowed_speed", 13.89);
+		}
+
+		Link motorway = NetworkUtils.createAndAddLink(network, Id.createLinkId("fso34"), n3, n4, 1000, 33.33, 2000, 2);
+		NetworkUtils.setType(motorway, "highway.motorway");
+
+		return network;
+	}
+
+	private FreeSpeedOptimizer createOptimizer(Network network) throws Exception {
+
+		Path csv = folder.getRoot().toPath().resolve("features.csv");
+		Files.writeString(csv, """
+			edgeId,junctionType,length,speed,numFoes,numLanes,junctionSize,dir_l,dir_r,dir_s,dir_multiple_s,dir_exclusive,priority_lower,priority_equal,priority_higher,changeNumLanes
+			fso12,priority,100,13.89,1,1,3,False,False,True,False,False,False,True,False,0
+			fso23,priority,100,13.89,1,1,3,False,False,True,False,False,False,True,False,0
+			""");
+
+		Object2DoubleMap<SampleValidationRoutes.FromToNodes> validation = new Object2DoubleOpenHashMap<>();
+		validation.put(new SampleValidationRoutes.FromToNodes(Id.createNodeId("fso1"), Id.createNodeId("fso3")), 10);
+		validation.put(new SampleValidationRoutes.FromToNodes(Id.createNodeId("fso1"), Id.createNodeId("fso4")), 60);
+
+		FreeSpeedOptimizer optimizer = new FreeSpeedOptimizer();
+		optimizer.init(network, validation, FeatureStore.load(csv.toString()));
+		return optimizer;
+	}
+
+	@Test
+	public void batchData() throws Exception {
+
+		FreeSpeedOptimizer optimizer = createOptimizer(createNetwork());
+
+		FreeSpeedOptimizer.Request model = new FreeSpeedOptimizer.Request();
+		model.priority = TreeModel.get("Speedrelative_priority").getDefaultParams();
+		model.rbl = TreeModel.get("Speedrelative_right_before_left").getDefaultParams();
+		model.traffic_light = TreeModel.get("Speedrelative_traffic_light").getDefaultParams();
+
+		List<FreeSpeedOptimizer.Result> results = optimizer.evaluate(List.of(new FreeSpeedOptimizer.Request(0.9), model), true);
+
+		// Requests with a factor are not based on the models and provide no data
+		FreeSpeedOptimizer.Result f = results.get(0);
+		assertThat(f.priority()).isEmpty();
+		assertThat(f.rbl()).isEmpty();
+		assertThat(f.traffic_light()).isEmpty();
+
+		// Both routes pass the two priority links, the motorway has no model data
+		assertThat(results.get(1).priority()).hasSize(4);
+	}
+
+	@Test
+	public void independentOfNetwork() throws Exception {
+
+		Network network = createNetwork();
+		FreeSpeedOptimizer optimizer = createOptimizer(network);
+
+		List<FreeSpeedOptimizer.Request> requests = List.of(new FreeSpeedOptimizer.Request(0.9), new FreeSpeedOptimizer.Request(0.5));
+		List<FreeSpeedOptimizer.Result> before = optimizer.evaluate(requests, false);
+
+		// Same as applying a request to the network, the motorway falls back to its modified freespeed
+		for (Link link : network.getLinks().values()) {
+			link.setFreespeed(1);
+			link.getAttributes().putAttribute("speed_factor", 0.5);
+		}
+
+		List<FreeSpeedOptimizer.Result> after = optimizer.evaluate(requests, false);
+
+		for (int i = 0; i < requests.size(); i++) {
+			assertThat(after.get(i).rmse()).isEqualTo(before.get(i).rmse());
+			assertThat(after.get(i).mse()).isEqualTo(before.get(i).mse());
+		}
+	}
+}
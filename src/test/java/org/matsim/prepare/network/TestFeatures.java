@@ -0,0 +1,50 @@
+package org.matsim.prepare.network;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random network features and the generated models for tests and benchmarks.
+ */
+final class TestFeatures {
+
+	private TestFeatures() {
+	}
+
+	/**
+	 * Create random features, as columns ordered as {@link FeatureRegressor#FEATURES}.
+	 */
+	static double[][] createColumns(int size, long seed) {
+
+		SplittableRandom rnd = new SplittableRandom(seed);
+		double[][] columns = new double[FeatureRegressor.FEATURES.size()][size];
+
+		for (int i = 0; i < size; i++) {
+			columns[0][i] = rnd.nextDouble(10, 500);
+			columns[1][i] = rnd.nextDouble(5, 25);
+			columns[2][i] = rnd.nextInt(4);
+			columns[3][i] = rnd.nextInt(1, 4);
+			columns[4][i] = rnd.nextInt(1, 20);
+			for (int j = 5; j < columns.length; j++) {
+				columns[j][i] = rnd.nextBoolean() ? 1 : 0;
+			}
+		}
+
+		return columns;
+	}
+
+	/**
+	 * Generated model class with the given name.
+	 */
+	static FeatureRegressor getModel(String name) {
+		return switch (name) {
+			case "Capacity_priority" -> Capacity_priority.INSTANCE;
+			case "Capacity_right_before_left" -> Capacity_right_before_left.INSTANCE;
+			case "Capacity_traffic_light" -> Capacity_traffic_light.INSTANCE;
+			case "Speedrelative_priority" -> Speedrelative_priority.INSTANCE;
+			case "Speedrelative_right_before_left" -> Speedrelative_right_before_left.INSTANCE;
+			case "Speedrelative_traffic_light" -> Speedrelative_traffic_light.INSTANCE;
+			default -> throw new IllegalArgumentException("Unknown model: " + name);
+		};
+	}
+
+}
@@ -0,0 +1,196 @@
+package org.matsim.prepare.opt;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.counts.Count;
+import org.matsim.counts.Counts;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RunCountOptimizationTest {
+
+	private static final int LINKS = 6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Chain of links rco_0 ... rco_5.
+	 */
+	private static Network createNetwork() {
+
+		Network network = NetworkUtils.createNetwork();
+		Node prev = NetworkUtils.createAndAddNode(network, Id.createNodeId("rco_n0"), new Coord(0, 0));
+		for (int i = 0; i < LINKS; i++) {
+			Node next = NetworkUtils.createAndAddNode(network, Id.createNodeId("rco_n" + (i + 1)), new Coord((i + 1) * 500, 0));
+			NetworkUtils.createAndAddLink(network, Id.createLinkId("rco_" + i), prev, next, 500, 10 + i, 1000, 1);
+			prev = next;
+		}
+
+		return network;
+	}
+
+	private static Counts<Link> createCounts() {
+		Counts<Link> counts = new Counts<>();
+		for (int i : new int[]{1, 3}) {
+			Count<Link> count = counts.createAndAddCount(Id.createLinkId("rco_" + i), "station " + i);
+			count.createVolume(8, 100);
+		}
+		return counts;
+	}
+
+	/**
+	 * Persons with a few car and walk trips along the chain, some of them commercial. Links can be replaced to create invalid routes.
+	 */
+	private static Path createPopulation(Path path, int n, String replaceLink) {
+
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		PopulationFactory f = population.getFactory();
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		for (int i = 0; i < n; i++) {
+
+			String prefix = rnd.nextInt(5) == 0 ? "commercialPersonTraffic_" : "rco_";
+			Person person = f.createPerson(Id.createPersonId(prefix + i));
+
+			int plans = 1 + rnd.nextInt(5);
+			for (int p = 0; p < plans; p++) {
+				Plan plan = f.createPlan();
+				plan.addActivity(f.createActivityFromLinkId("home", Id.createLinkId("rco_0")));
+
+				int trips = rnd.nextInt(3);
+				for (int t = 0; t < trips; t++) {
+
+					int from = rnd.nextInt(LINKS - 1);
+					int to = from + 1 + rnd.nextInt(LINKS - 1 - from);
+
+					List<Id<Link>> route = new ArrayList<>();
+					for (int l = from + 1; l < to; l++) {
+						String id = "rco_" + l;
+						route.add(Id.createLinkId(id.equals(replaceLink) ? "missing" : id));
+					}
+
+					Leg leg = f.createLeg(rnd.nextInt(4) == 0 ? TransportMode.walk : TransportMode.car);
+					leg.setDepartureTime(6 * 3600 + rnd.nextInt(4 * 3600));
+					leg.setRoute(RouteUtils.createLinkNetworkRouteImpl(Id.createLinkId("rco_" + from), route, Id.createLinkId("rco_" + to)));
+
+					plan.addLeg(leg);
+					plan.addActivity(f.createActivityFromLinkId("other", Id.createLinkId("rco_" + to)));
+				}
+
+				person.addPlan(plan);
+			}
+
+			population.addPerson(person);
+		}
+
+		PopulationUtils.writePopulation(population, path.toString());
+		return path;
+	}
+
+	private static RunCountOptimization createCommand(int threads, boolean compact) {
+
+		RunCountOptimization cmd = new RunCountOptimization();
+		new CommandLine(cmd).parseArgs("--input", "plans.xml", "--output", "out.csv", "--network", "network.xml", "--counts", "counts.xml",
+			"--threads", String.valueOf(threads), compact ? "--compact-plans" : "--no-compact-plans");
+
+		return cmd;
+	}
+
+	/**
+	 * Count increments of each plan of a person.
+	 */
+	private static List<int[]> getPlans(PlanPerson person, int numCounts) {
+		List<int[]> result = new ArrayList<>();
+		for (int k = 0; k < 5; k++) {
+			int[] observed = new int[numCounts];
+			person.setK(k);
+			person.addSelected(observed, 1);
+			result.add(observed);
+		}
+		return result;
+	}
+
+	@Test
+	public void streaming() throws Exception {
+
+		Network network = createNetwork();
+		Counts<Link> counts = createCounts();
+		Path input = createPopulation(folder.getRoot().toPath().resolve("plans.xml"), 500, null);
+
+		for (boolean compact : new boolean[]{false, true}) {
+			for (int threads : new int[]{1, 3}) {
+
+				RunCountOptimization cmd = createCommand(threads, compact);
+				int numCounts = cmd.mapCounts(counts).length;
+
+				// Mapped one after another from the population in memory
+				List<Id<Person>> ids = new ArrayList<>();
+				List<List<int[]>> expected = new ArrayList<>();
+				for (Person person : PopulationUtils.readPopulation(input.toString()).getPersons().values()) {
+
+					int offset = person.getId().toString().startsWith("commercialPersonTraffic") ? 1 : 0;
+					Int2IntMap[] plans = cmd.mapPlans(person, offset, 4, network, counts.getCounts().keySet());
+					if (plans == null)
+						continue;
+
+					ids.add(person.getId());
+					expected.add(getPlans(new PlanPerson(person.getId(), offset, plans), numCounts));
+				}
+
+				List<PlanPerson> actual = cmd.processPopulation(input, network, counts);
+
+				assertThat(actual).extracting(PlanPerson::getId).containsExactlyElementsOf(ids);
+				assertThat(actual).allMatch(p -> p.isCompact() == compact);
+
+				for (int i = 0; i < actual.size(); i++) {
+					assertThat(actual.get(i).getOffset())
+						.isEqualTo(ids.get(i).toString().startsWith("commercialPersonTraffic") ? 1 : 0);
+					assertThat(getPlans(actual.get(i), numCounts))
+						.as("Plans of %s", ids.get(i))
+						.containsExactlyElementsOf(expected.get(i));
+				}
+			}
+		}
+	}
+
+	@Test(timeout = 60_000)
+	public void workerFailure() throws Exception {
+
+		Network network = createNetwork();
+		Counts<Link> counts = createCounts();
+
+		// Routes with unknown links let the workers fail
+		Path input = createPopulation(folder.getRoot().toPath().resolve("plans.xml"), 500, "rco_2");
+
+		for (int threads : new int[]{1, 3}) {
+			RunCountOptimization cmd = createCommand(threads, true);
+			cmd.mapCounts(counts);
+
+			assertThatThrownBy(() -> cmd.processPopulation(input, network, counts))
+				.isInstanceOfAny(ExecutionException.class, RuntimeException.class)
+				.hasRootCauseInstanceOf(NullPointerException.class);
+		}
+	}
+}
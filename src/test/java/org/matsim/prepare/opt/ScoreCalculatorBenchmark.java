@@ -0,0 +1,83 @@
+package org.matsim.prepare.opt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the number of moves per second of the hash map and the compact plan layout,
+ * as well as the big decimal and the exact integer score calculation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScoreCalculatorBenchmark {
+
+	@Param({"false", "true"})
+	private boolean compact;
+
+	@Param({"100000"})
+	private int size;
+
+	private PlanAssignmentProblem problem;
+	private ScoreCalculator calc;
+	private ExactScoreCalculator exactCalc;
+	private SplittableRandom rnd;
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ScoreCalculatorBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+	@Setup
+	public void setup() {
+		problem = TestProblems.create(ErrorMetric.abs_error, size, 2000 * 24, 5, compact, 0);
+		calc = new ScoreCalculator();
+		calc.resetWorkingSolution(problem);
+		exactCalc = new ExactScoreCalculator();
+		exactCalc.resetWorkingSolution(new ExactPlanAssignmentProblem(problem));
+		rnd = new SplittableRandom(1);
+	}
+
+	@Benchmark
+	public Object move() {
+
+		PlanPerson person = problem.getPersons().get(rnd.nextInt(size));
+
+		calc.beforeVariableChanged(person, "k");
+		person.setK(rnd.nextInt(problem.getMaxK()));
+		calc.afterVariableChanged(person, "k");
+
+		return calc.calculateScore();
+	}
+
+	@Benchmark
+	public Object moveExact() {
+
+		PlanPerson person = problem.getPersons().get(rnd.nextInt(size));
+
+		exactCalc.beforeVariableChanged(person, "k");
+		person.setK(rnd.nextInt(problem.getMaxK()));
+		exactCalc.afterVariableChanged(person, "k");
+
+		return exactCalc.calculateScore();
+	}
+
+	@Benchmark
+	public double planScores() {
+
+		PlanPerson person = problem.getPersons().get(rnd.nextInt(size));
+		person.setScore(calc);
+
+		return person.changePlanExpBeta(1, 0.01, rnd);
+	}
+
+}
@@ -2,7 +2,12 @@ package org.matsim.prepare.opt;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
 
 
 public class ScoreCalculatorTest {
@@ -48,4 +53,202 @@ public class ScoreCalculatorTest {
 
 	}
 
+	@Test
+	public void compactPlans() {
+
+		for (ErrorMetric metric : ErrorMetric.values()) {
+
+			PlanAssignmentProblem maps = TestProblems.create(metric, 1000, 200, 5, false, 0);
+			PlanAssignmentProblem compact = TestProblems.create(metric, 1000, 200, 5, true, 0);
+
+			ScoreCalculator c1 = new ScoreCalculator();
+			c1.resetWorkingSolution(maps);
+
+			ScoreCalculator c2 = new ScoreCalculator();
+			c2.resetWorkingSolution(compact);
+
+			assertThat(c2.calculateScore()).isEqualTo(c1.calculateScore());
+
+			SplittableRandom rnd = new SplittableRandom(0);
+			List<PlanPerson> p1 = maps.getPersons();
+			List<PlanPerson> p2 = compact.getPersons();
+
+			for (int i = 0; i < 5000; i++) {
+
+				int idx = rnd.nextInt(p1.size());
+				int k = rnd.nextInt(maps.getMaxK());
+
+				c1.beforeVariableChanged(p1.get(idx), "k");
+				p1.get(idx).setK(k);
+				c1.afterVariableChanged(p1.get(idx), "k");
+
+				c2.beforeVariableChanged(p2.get(idx), "k");
+				p2.get(idx).setK(k);
+				c2.afterVariableChanged(p2.get(idx), "k");
+			}
+
+			assertThat(c2.calculateScore().score().doubleValue())
+					.isCloseTo(c1.calculateScore().score().doubleValue(), offset(1e-6));
+
+			// Full recalculation must match the incremental one
+			c1.resetWorkingSolution(maps);
+			c2.resetWorkingSolution(compact);
+
+			assertThat(c2.calculateScore().score().doubleValue())
+					.isCloseTo(c1.calculateScore().score().doubleValue(), offset(1e-6));
+		}
+	}
+
+	@Test
+	public void parallelIterate() {
+
+		int[] ks = null;
+		for (int i = 0; i < 2; i++) {
+			PlanAssignmentProblem problem = TestProblems.create(ErrorMetric.abs_error, 2000, 200, 5, true, 0);
+
+			ScoreCalculator calc = new ScoreCalculator();
+			calc.resetWorkingSolution(problem);
+			double before = calc.calculateScore().score().doubleValue();
+
+			problem.iterate(50, 0.5, 1, 0.01, 4, 1);
+
+			assertThat(problem.getScore().score().doubleValue()).isGreaterThanOrEqualTo(before);
+
+			// Same seed and number of threads need to result in the same assignment
+			int[] result = problem.getPersons().stream().mapToInt(PlanPerson::getK).toArray();
+			if (ks != null)
+				assertThat(result).isEqualTo(ks);
+
+			ks = result;
+		}
+	}
+
+	@Test
+	public void singleThreadSeed() {
+
+		int[][] ks = new int[2][];
+		for (int seed = 0; seed < 2; seed++) {
+			PlanAssignmentProblem problem = TestProblems.create(ErrorMetric.abs_error, 2000, 200, 5, true, 0);
+			problem.iterate(50, 0.5, 1, 0.01, 1, seed);
+			ks[seed] = problem.getPersons().stream().mapToInt(PlanPerson::getK).toArray();
+		}
+
+		assertThat(ks[1]).isNotEqualTo(ks[0]);
+	}
+
+	@Test
+	public void islandBase() {
+
+		PlanAssignmentProblem problem = TestProblems.create(ErrorMetric.abs_error, 1000, 200, 5, true, 0);
+
+		ScoreCalculator calc = new ScoreCalculator();
+		calc.resetWorkingSolution(problem);
+
+		IslandSolver solver = new IslandSolver(null, 4, 24, null);
+		List<List<PlanPerson>> partition = solver.partition(problem);
+
+		assertThat(partition.stream().mapToInt(List::size).sum())
+				.isEqualTo(problem.getSize());
+
+		// Score of an island with fixed contribution of all other persons equals the global score
+		List<PlanPerson> members = partition.get(0);
+		int[] base = new int[problem.counts.length];
+		for (PlanPerson person : problem) {
+			if (!members.contains(person))
+				person.addSelected(base, 1);
+		}
+
+		PlanAssignmentProblem island = new PlanAssignmentProblem(problem.getMaxK(), problem.metric, new ArrayList<>(members), problem.counts, base);
+
+		ScoreCalculator islandCalc = new ScoreCalculator();
+		islandCalc.resetWorkingSolution(island);
+
+		assertThat(islandCalc.calculateScore()).isEqualTo(calc.calculateScore());
+	}
+
+	@Test
+	public void deltaChange() {
+
+		PlanAssignmentProblem problem = TestProblems.create(ErrorMetric.abs_error, 1000, 200, 5, true, 0);
+
+		ScoreCalculator calc = new ScoreCalculator();
+		calc.resetWorkingSolution(problem);
+
+		for (PlanPerson person : problem.getPersons().subList(0, 100)) {
+
+			double before = calc.calculateScore().score().doubleValue();
+			double delta = calc.deltaChange(person, 3);
+
+			assertThat(calc.calculateScore().score().doubleValue()).isEqualTo(before);
+
+			calc.beforeVariableChanged(person, "k");
+			person.setK(3);
+			calc.afterVariableChanged(person, "k");
+
+			assertThat(-calc.calculateScore().score().doubleValue())
+					.isCloseTo(-before + delta, offset(1e-6));
+		}
+	}
+
+	@Test
+	public void exactScore() {
+
+		for (ErrorMetric metric : ErrorMetric.values()) {
+
+			PlanAssignmentProblem problem = TestProblems.create(metric, 1000, 200, 5, true, 0);
+
+			ScoreCalculator calc = new ScoreCalculator();
+			calc.resetWorkingSolution(problem);
+
+			ExactScoreCalculator exact = new ExactScoreCalculator();
+			exact.resetWorkingSolution(new ExactPlanAssignmentProblem(problem));
+
+			SplittableRandom rnd = new SplittableRandom(0);
+			for (int i = 0; i < 5000; i++) {
+
+				PlanPerson person = problem.getPersons().get(rnd.nextInt(problem.getSize()));
+
+				if (rnd.nextBoolean()) {
+					// Change move
+					calc.beforeVariableChanged(person, "k");
+					exact.beforeVariableChanged(person, "k");
+					person.setK(rnd.nextInt(problem.getMaxK()));
+					calc.afterVariableChanged(person, "k");
+					exact.afterVariableChanged(person, "k");
+				} else {
+					// Swap move
+					PlanPerson other = problem.getPersons().get(rnd.nextInt(problem.getSize()));
+					if (other == person)
+						continue;
+
+					calc.beforeVariableChanged(person, "k");
+					exact.beforeVariableChanged(person, "k");
+					calc.beforeVariableChanged(other, "k");
+					exact.beforeVariableChanged(other, "k");
+
+					int k = person.getK();
+					person.setK(other.getK());
+					other.setK(k);
+
+					calc.afterVariableChanged(person, "k");
+					exact.afterVariableChanged(person, "k");
+					calc.afterVariableChanged(other, "k");
+					exact.afterVariableChanged(other, "k");
+				}
+			}
+
+			// Absolute error is the same as the big decimal score
+			if (metric == ErrorMetric.abs_error)
+				assertThat(exact.calculateScore().score())
+						.isEqualTo(calc.calculateScore().score().longValue());
+
+			long incremental = exact.calculateScore().score();
+			exact.resetWorkingSolution(new ExactPlanAssignmentProblem(problem));
+
+			assertThat(exact.calculateScore().score())
+					.as(metric.toString())
+					.isEqualTo(incremental);
+		}
+	}
+
 }
@@ -0,0 +1,65 @@
+package org.matsim.prepare.opt;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.matsim.api.core.v01.Id;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Random plan assignment problems for tests and benchmarks.
+ */
+final class TestProblems {
+
+	private TestProblems() {
+	}
+
+	/**
+	 * Create a random problem with the given layout. The same seed always results in the same plans.
+	 */
+	static PlanAssignmentProblem create(ErrorMetric metric, int size, int numCounts, int maxK, boolean compact, long seed) {
+
+		SplittableRandom rnd = new SplittableRandom(seed);
+
+		int[] counts = new int[numCounts];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = rnd.nextInt(size / 10 + 1);
+		}
+
+		PlanStore.Builder builder = new PlanStore.Builder(maxK);
+		List<Int2IntMap[]> all = new ArrayList<>();
+
+		for (int i = 0; i < size; i++) {
+			Int2IntMap[] plans = new Int2IntMap[maxK];
+			for (int k = 0; k < maxK; k++) {
+				plans[k] = new Int2IntOpenHashMap();
+				int n = rnd.nextInt(8);
+				for (int j = 0; j < n; j++) {
+					plans[k].merge(rnd.nextInt(numCounts), 4, Integer::sum);
+				}
+			}
+
+			if (compact)
+				builder.add(plans);
+			else
+				all.add(plans);
+		}
+
+		List<PlanPerson> persons = new ArrayList<>();
+		if (compact) {
+			PlanStore store = builder.build();
+			for (int i = 0; i < size; i++) {
+				persons.add(new PlanPerson(Id.createPersonId(i), 0, store, i));
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				persons.add(new PlanPerson(Id.createPersonId(i), 0, all.get(i)));
+			}
+		}
+
+		return new PlanAssignmentProblem(maxK, metric, persons, counts);
+	}
+
+}
@@ -0,0 +1,96 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the commute selections per second for one large origin zone, which is shared by all threads.
+ * The main method runs the benchmark with 1 to 32 threads.
+ * The sampler fails for a share of the calls, like facility sampling that finds nothing within the distance,
+ * so that following candidates are tried as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CommuterAssignmentBenchmark {
+
+	private static final long ORIGIN = 11000000;
+
+	@Param({"false", "true"})
+	private boolean weighted;
+
+	@Param({"2000"})
+	private int destinations;
+
+	/**
+	 * Probability that the sampler returns a facility.
+	 */
+	@Param({"1.0", "0.1"})
+	private double hitRate;
+
+	private CommuterAssignment commuter;
+	private ActivityFacility facility;
+	private Coord refCoord;
+
+	public static void main(String[] args) throws RunnerException {
+		for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+			new Runner(new OptionsBuilder()
+				.include(CommuterAssignmentBenchmark.class.getSimpleName())
+				.threads(threads)
+				.build()).run();
+		}
+	}
+
+	@Setup
+	public void setup() {
+
+		GeometryFactory gf = new GeometryFactory();
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		Long2ObjectMap<Geometry> zones = new Long2ObjectOpenHashMap<>();
+		Long2DoubleMap outgoing = new Long2DoubleOpenHashMap();
+
+		for (int i = 0; i < destinations; i++) {
+			double x = rnd.nextDouble() * 100_000;
+			double y = rnd.nextDouble() * 100_000;
+			zones.put(i, gf.toGeometry(new Envelope(x, x + 1000, y, y + 1000)));
+			// Large enough to not run out during the benchmark
+			outgoing.put(i, 1e12 * (1 + rnd.nextInt(100)));
+		}
+
+		Long2ObjectMap<Long2DoubleMap> relations = new Long2ObjectOpenHashMap<>();
+		relations.put(ORIGIN, outgoing);
+
+		commuter = new CommuterAssignment(zones, relations, 1, weighted);
+		facility = FacilitiesUtils.createActivityFacilities().getFactory()
+			.createActivityFacility(Id.create("work", ActivityFacility.class), new Coord(0, 0));
+		refCoord = new Coord(50_000, 50_000);
+	}
+
+	@Benchmark
+	public ActivityFacility selectTarget(ThreadState state) {
+		return commuter.selectTarget(state.rnd, ORIGIN, 100_000, refCoord, zone -> state.rnd.nextDouble() < hitRate ? facility : null);
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private final SplittableRandom rnd = new SplittableRandom(Thread.currentThread().getId());
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommuterAssignmentTest {
+
+	private static final long ORIGIN = 1;
+
+	private static final Coord REF = new Coord(0, 0);
+
+	private final ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
+	private final Long2ObjectMap<ActivityFacility> byZone = new Long2ObjectOpenHashMap<>();
+
+	/**
+	 * Create assignment with destination zones 10, 11, ... next to each other, which are all within the commute distance.
+	 */
+	private static CommuterAssignment create(boolean weighted, double sample, double... quota) {
+
+		GeometryFactory gf = new GeometryFactory();
+
+		Long2ObjectMap<Geometry> zones = new Long2ObjectOpenHashMap<>();
+		Long2DoubleMap outgoing = new Long2DoubleOpenHashMap();
+
+		for (int i = 0; i < quota.length; i++) {
+			zones.put(10 + i, gf.toGeometry(new Envelope(i * 100, i * 100 + 100, 0, 100)));
+			outgoing.put(10 + i, quota[i]);
+		}
+
+		Long2ObjectMap<Long2DoubleMap> relations = new Long2ObjectOpenHashMap<>();
+		relations.put(ORIGIN, outgoing);
+
+		return new CommuterAssignment(zones, relations, sample, weighted);
+	}
+
+	/**
+	 * Sampler returning one facility per zone, with the zone as id.
+	 */
+	private synchronized ActivityFacility facility(long zone) {
+		return byZone.computeIfAbsent(zone,
+			k -> facilities.getFactory().createActivityFacility(Id.create(k, ActivityFacility.class), new Coord(0, 0)));
+	}
+
+	private static long zone(ActivityFacility f) {
+		return Long.parseLong(f.getId().toString());
+	}
+
+	@Test
+	public void quota() {
+
+		for (boolean weighted : new boolean[]{false, true}) {
+
+			CommuterAssignment commuter = create(weighted, 1, 2, 3);
+			SplittableRandom rnd = new SplittableRandom(0);
+
+			Long2IntMap counts = new Long2IntOpenHashMap();
+			for (int i = 0; i < 5; i++) {
+				ActivityFacility f = commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility);
+				assertThat(f).isNotNull();
+				counts.mergeInt(zone(f), 1, Integer::sum);
+			}
+
+			assertThat(counts.get(10)).isEqualTo(2);
+			assertThat(counts.get(11)).isEqualTo(3);
+
+			// All commuters have been assigned
+			assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)).isNull();
+		}
+	}
+
+	@Test
+	public void sample() {
+
+		// Each agent represents 4 commuters, one relation with 10 commuters is enough for 3 agents
+		CommuterAssignment commuter = create(false, 0.25, 10);
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		for (int i = 0; i < 3; i++) {
+			assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)).isNotNull();
+		}
+
+		assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)).isNull();
+	}
+
+	@Test
+	public void copy() {
+
+		CommuterAssignment commuter = create(false, 1, 1);
+		CommuterAssignment copy = new CommuterAssignment(commuter);
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)).isNotNull();
+		assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)).isNull();
+
+		// Quota of the copy is not reduced
+		assertThat(copy.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)).isNotNull();
+	}
+
+	@Test
+	public void noFacility() {
+
+		CommuterAssignment commuter = create(false, 1, 1, 1);
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		// No facility found, all candidates are tried and the quota is not reduced
+		AtomicInteger calls = new AtomicInteger();
+		assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, zone -> {
+			calls.incrementAndGet();
+			return null;
+		})).isNull();
+
+		assertThat(calls.get()).isEqualTo(2);
+
+		// Only zone 11 has facilities, the selection falls back to it
+		assertThat(zone(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, zone -> zone == 11 ? facility(zone) : null)))
+			.isEqualTo(11);
+
+		assertThat(zone(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)))
+			.isEqualTo(10);
+
+		assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)).isNull();
+	}
+
+	@Test
+	public void discard() throws Exception {
+
+		CommuterAssignment commuter = create(false, 1, 1);
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		// Another thread takes the last commuter while this one is sampling its facility
+		ActivityFacility res = commuter.selectTarget(rnd, ORIGIN, 10_000, REF, zone -> {
+			List<ActivityFacility> other = new ArrayList<>();
+			Thread t = new Thread(() -> other.add(commuter.selectTarget(new SplittableRandom(1), ORIGIN, 10_000, REF, this::facility)));
+			t.start();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+
+			assertThat(other).doesNotContainNull();
+			return facility(zone);
+		});
+
+		// The sampled facility is thrown away, because no commuters are left
+		assertThat(res).isNull();
+	}
+
+	@Test
+	public void concurrent() throws Exception {
+
+		int n = 1000;
+		CommuterAssignment commuter = create(false, 1, n / 2., n / 2.);
+
+		AtomicInteger selected = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			SplittableRandom rnd = new SplittableRandom(i);
+			threads.add(new Thread(() -> {
+				for (int j = 0; j < n / 4; j++) {
+					if (commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility) != null)
+						selected.incrementAndGet();
+				}
+			}));
+		}
+
+		threads.forEach(Thread::start);
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		// No commuter is assigned twice and none is lost
+		assertThat(selected.get()).isEqualTo(n);
+	}
+
+	@Test
+	public void weighted() {
+
+		CommuterAssignment commuter = create(true, 1, 1e9, 3e9, 0);
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		int draws = 20_000;
+		Long2IntMap counts = new Long2IntOpenHashMap();
+		for (int i = 0; i < draws; i++) {
+			counts.mergeInt(zone(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)), 1, Integer::sum);
+		}
+
+		// Destinations are drawn proportional to the remaining commuters
+		assertThat(counts.get(10) / (double) draws).isBetween(0.23, 0.27);
+		assertThat(counts.get(11) / (double) draws).isBetween(0.73, 0.77);
+
+		// Relations without commuters are never selected
+		assertThat(counts).doesNotContainKey(12L);
+	}
+
+	@Test
+	public void weightedRemaining() {
+
+		// Frequencies follow the remaining and not the initial commuters
+		CommuterAssignment commuter = create(true, 1, 1000, 1000);
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		for (int i = 0; i < 900; i++) {
+			assertThat(commuter.selectTarget(rnd, ORIGIN, 10_000, REF, zone -> zone == 10 ? facility(zone) : null)).isNotNull();
+		}
+
+		Long2IntMap counts = new Long2IntOpenHashMap();
+		for (int i = 0; i < 1000; i++) {
+			CommuterAssignment copy = new CommuterAssignment(commuter);
+			counts.mergeInt(zone(copy.selectTarget(rnd, ORIGIN, 10_000, REF, this::facility)), 1, Integer::sum);
+		}
+
+		// 100 against 1000 remaining commuters
+		assertThat(counts.get(10)).isBetween(50, 140);
+	}
+
+	@Test
+	public void unknownOrigin() {
+		CommuterAssignment commuter = create(true, 1, 1);
+		assertThat(commuter.selectTarget(new SplittableRandom(0), 99, 10_000, REF, this::facility)).isNull();
+	}
+
+	@Test
+	public void distance() {
+
+		CommuterAssignment commuter = create(false, 1, 1, 1, 1);
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		// Only the first zone is within 1.2 times the distance
+		for (int i = 0; i < 3; i++) {
+			ActivityFacility f = commuter.selectTarget(rnd, ORIGIN, 50, new Coord(-50, 50), this::facility);
+			if (i == 0)
+				assertThat(zone(f)).isEqualTo(10);
+			else
+				assertThat(f).isNull();
+		}
+	}
+}
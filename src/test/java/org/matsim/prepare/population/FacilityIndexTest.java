@@ -0,0 +1,132 @@
+package org.matsim.prepare.population;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesUtils;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FacilityIndexTest {
+
+	private static List<ActivityFacility> createFacilities(int n, SplittableRandom rnd) {
+
+		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
+		List<ActivityFacility> result = new ArrayList<>();
+
+		for (int i = 0; i < n; i++) {
+			// Clustered coordinates, so that cells are filled unevenly
+			double x = rnd.nextDouble() < 0.5 ? rnd.nextDouble() * 1000 : 5000 + rnd.nextDouble() * 20_000;
+			double y = rnd.nextDouble() < 0.5 ? rnd.nextDouble() * 1000 : rnd.nextDouble() * 10_000;
+			result.add(facilities.getFactory().createActivityFacility(Id.create("fi_" + i, ActivityFacility.class), new Coord(x, y)));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Facilities within the band, by checking all of them.
+	 */
+	private static Set<ActivityFacility> bruteForce(List<ActivityFacility> facilities, Coord ref, double lower, double upper) {
+		Set<ActivityFacility> result = new HashSet<>();
+		for (ActivityFacility f : facilities) {
+			double d = CoordUtils.calcEuclideanDistance(f.getCoord(), ref);
+			if (d >= lower && d <= upper)
+				result.add(f);
+		}
+		return result;
+	}
+
+	@Test
+	public void bruteForce() {
+
+		SplittableRandom rnd = new SplittableRandom(0);
+		List<ActivityFacility> facilities = createFacilities(5000, rnd);
+		FacilityIndex index = new FacilityIndex(facilities);
+
+		int empty = 0;
+		int complete = 0;
+
+		for (int q = 0; q < 2000; q++) {
+
+			// References are also outside the bounding box of the facilities
+			Coord ref = new Coord(rnd.nextDouble() * 30_000 - 2500, rnd.nextDouble() * 15_000 - 2500);
+			double lower = rnd.nextDouble() < 0.2 ? 0 : rnd.nextDouble() * 5000;
+			double upper = lower + rnd.nextDouble() * (rnd.nextBoolean() ? 50 : 3000);
+
+			Set<ActivityFacility> expected = bruteForce(facilities, ref, lower, upper);
+
+			if (expected.isEmpty()) {
+				assertThat(index.sample(rnd, ref, lower, upper)).isNull();
+				empty++;
+				continue;
+			}
+
+			// Small bands are sampled often enough to reach every facility
+			int draws = expected.size() <= 10 ? 300 : 20;
+			Set<ActivityFacility> sampled = new HashSet<>();
+			for (int i = 0; i < draws; i++) {
+				ActivityFacility f = index.sample(rnd, ref, lower, upper);
+				assertThat(expected).contains(f);
+				sampled.add(f);
+			}
+
+			if (expected.size() <= 10) {
+				assertThat(sampled).isEqualTo(expected);
+				complete++;
+			}
+		}
+
+		// Make sure all cases have been tested
+		assertThat(empty).isGreaterThan(10);
+		assertThat(complete).isGreaterThan(10);
+	}
+
+	@Test
+	public void uniform() {
+
+		SplittableRandom rnd = new SplittableRandom(1);
+		List<ActivityFacility> facilities = createFacilities(2000, rnd);
+		FacilityIndex index = new FacilityIndex(facilities);
+
+		Coord ref = new Coord(500, 500);
+		List<ActivityFacility> expected = new ArrayList<>(bruteForce(facilities, ref, 100, 400));
+		assertThat(expected).hasSizeGreaterThan(50);
+
+		Map<ActivityFacility, Integer> counts = new HashMap<>();
+		int draws = 200 * expected.size();
+		for (int i = 0; i < draws; i++) {
+			counts.merge(index.sample(rnd, ref, 100, 400), 1, Integer::sum);
+		}
+
+		// Each facility is expected 200 times
+		assertThat(counts.keySet()).containsExactlyInAnyOrderElementsOf(expected);
+		assertThat(counts.values()).allSatisfy(c -> assertThat(c).isBetween(120, 280));
+	}
+
+	@Test
+	public void edgeCases() {
+
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		assertThat(new FacilityIndex(List.of()).sample(rnd, new Coord(0, 0), 0, 1000)).isNull();
+
+		// All facilities at the same location
+		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
+		List<ActivityFacility> same = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			same.add(facilities.getFactory().createActivityFacility(Id.create("fs_" + i, ActivityFacility.class), new Coord(100, 100)));
+		}
+
+		FacilityIndex index = new FacilityIndex(same);
+		assertThat(index.sample(rnd, new Coord(100, 100), 0, 0)).isIn(same);
+		assertThat(index.sample(rnd, new Coord(100, 200), 100, 100)).isIn(same);
+		assertThat(index.sample(rnd, new Coord(100, 200), 101, 200)).isNull();
+		assertThat(index.sample(rnd, new Coord(100, 100), 10, 5)).isNull();
+	}
+}
@@ -0,0 +1,26 @@
+package org.matsim.prepare.population;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersonRandomTest {
+
+	@Test
+	public void streams() {
+
+		Id<Person> person = Id.createPersonId("pr_1");
+
+		assertThat(PersonRandom.get(1, "a", person, 0).nextLong())
+			.isEqualTo(PersonRandom.get(1, "a", person).nextLong());
+
+		// Each parameter results in a different sequence
+		long base = PersonRandom.get(1, "a", person, 0).nextLong();
+		assertThat(PersonRandom.get(1, "b", person, 0).nextLong()).isNotEqualTo(base);
+		assertThat(PersonRandom.get(2, "a", person, 0).nextLong()).isNotEqualTo(base);
+		assertThat(PersonRandom.get(1, "a", Id.createPersonId("pr_2"), 0).nextLong()).isNotEqualTo(base);
+		assertThat(PersonRandom.get(1, "a", person, 1).nextLong()).isNotEqualTo(base);
+	}
+}
@@ -0,0 +1,164 @@
+package org.matsim.prepare.population;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SurveyStoreTest {
+
+	private static final String[] GENDERS = {"m", "f"};
+	private static final int[] REGION_TYPES = {1, 3};
+	private static final String[] EMPLOYMENT = {"unemployed", "employed"};
+
+	private static CSVParser parse(String csv) throws IOException {
+		return CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(new StringReader(csv));
+	}
+
+	/**
+	 * One survey person for each combination of gender, age, region type and employment. Persons with even idx have two activities.
+	 */
+	private static SurveyStore createStore() throws IOException {
+
+		StringBuilder persons = new StringBuilder("idx,gender,age,region_type,employment,car_avail,driving_license,bike_avail,pt_abo_avail," +
+			"restricted_mobility,economic_status,n_persons,mobile_on_day\n");
+		StringBuilder activities = new StringBuilder("p_id,type,duration,leg_duration,leg_dist,leg_mode\n");
+
+		int idx = 0;
+		for (String gender : GENDERS) {
+			for (int age = 0; age <= 110; age++) {
+				for (int regionType : REGION_TYPES) {
+					for (String employment : EMPLOYMENT) {
+						persons.append("%d,%s,%d,%d,%s,True,Yes,False,True,False,low,%d,True\n".formatted(idx, gender, age, regionType, employment, idx % 5));
+
+						if (idx % 2 == 0) {
+							activities.append("%d,home,%d,0,0,\n".formatted(idx, idx));
+							activities.append("%d,work,%d,%d.5,%d,car\n".formatted(idx, idx + 1, idx, idx * 10));
+						}
+						idx++;
+					}
+				}
+			}
+		}
+
+		try (CSVParser p = parse(persons.toString()); CSVParser a = parse(activities.toString())) {
+			return new SurveyStore(p, a);
+		}
+	}
+
+	/**
+	 * Keys of a survey person, as they were expanded before the ranges have been introduced.
+	 */
+	private static Stream<RunActivitySampling.Key> expandKeys(String gender, int age, int regionType, String employment) {
+		if (age < 6) {
+			return IntStream.rangeClosed(0, 5).mapToObj(i -> new RunActivitySampling.Key(null, i, regionType, null));
+		}
+		if (age <= 10) {
+			return IntStream.rangeClosed(6, 10).mapToObj(i -> new RunActivitySampling.Key(null, i, regionType, null));
+		}
+		if (age < 18) {
+			return IntStream.rangeClosed(11, 18).mapToObj(i -> new RunActivitySampling.Key(gender, i, regionType, null));
+		}
+
+		Boolean isEmployed = age > 65 ? null : !employment.equals("unemployed");
+		int min = Math.max(18, age - 6);
+		int max = Math.min(65, age + 6);
+
+		if (age > 65) {
+			min = Math.max(66, age - 10);
+			max = Math.min(99, age + 10);
+		}
+
+		return IntStream.rangeClosed(min, max).mapToObj(i -> new RunActivitySampling.Key(gender, i, regionType, isEmployed));
+	}
+
+	@Test
+	public void subgroups() throws IOException {
+
+		SurveyStore store = createStore();
+
+		Map<RunActivitySampling.Key, Set<Integer>> expected = new HashMap<>();
+		for (int i = 0; i < store.age.length; i++) {
+			int idx = i;
+			expandKeys(GENDERS[i / (111 * 4)], store.age[i], REGION_TYPES[(i / 2) % 2], store.employment[i])
+				.forEach(k -> expected.computeIfAbsent(k, x -> new HashSet<>()).add(idx));
+		}
+
+		int queries = 0;
+		for (String gender : new String[]{"m", "f", null}) {
+			for (int age = 0; age <= 120; age++) {
+				for (int regionType : REGION_TYPES) {
+					for (Boolean employed : new Boolean[]{true, false, null}) {
+
+						// Same normalization as keys of persons in the population
+						RunActivitySampling.Key key = new RunActivitySampling.Key(
+							age <= 10 ? null : gender, age, regionType, age < 18 || age > 65 ? null : employed);
+
+						SurveyStore.Range range = RunActivitySampling.findSubgroup(store, key);
+
+						List<Integer> actual = new ArrayList<>();
+						for (int pos = range.from(); pos < range.to(); pos++) {
+							actual.add(store.getPerson(pos));
+						}
+
+						assertThat(actual)
+							.as("Subgroup of %s", key)
+							.doesNotHaveDuplicates()
+							.containsExactlyInAnyOrderElementsOf(expected.getOrDefault(key, Set.of()));
+
+						queries++;
+					}
+				}
+			}
+		}
+
+		assertThat(queries).isEqualTo(3 * 121 * 2 * 3);
+	}
+
+	@Test
+	public void columns() throws IOException {
+
+		SurveyStore store = createStore();
+
+		assertThat(store.age).hasSize(2 * 111 * 2 * 2);
+
+		for (int i = 0; i < store.age.length; i++) {
+
+			assertThat(store.nPersons[i]).isEqualTo(i % 5);
+			assertThat(store.drivingLicense[i]).isEqualTo("yes");
+			assertThat(store.carAvail[i]).isTrue();
+			assertThat(store.bikeAvail[i]).isFalse();
+
+			if (i % 2 != 0) {
+				assertThat(store.actEnd[i] - store.actStart[i]).isEqualTo(0);
+				continue;
+			}
+
+			int a = store.actStart[i];
+			assertThat(store.actEnd[i] - a).isEqualTo(2);
+			assertThat(store.type[a]).isEqualTo("home");
+			assertThat(store.type[a + 1]).isEqualTo("work");
+			assertThat(store.duration[a + 1]).isEqualTo(i + 1);
+			assertThat(store.legDuration[a + 1]).isEqualTo(i + 0.5);
+			assertThat(store.legDist[a + 1]).isEqualTo(i * 10.0);
+			assertThat(store.legMode[a + 1]).isEqualTo("car");
+		}
+	}
+
+	@Test
+	public void unknownGroup() throws IOException {
+
+		SurveyStore store = createStore();
+
+		assertThat(store.find(new SurveyStore.Group("x", 1, null), 0, 100).size()).isEqualTo(0);
+		assertThat(store.find(new SurveyStore.Group("m", 1, true), 40, 30).size()).isEqualTo(0);
+		assertThat(store.find(new SurveyStore.Group("m", 1, true), 40, 40).size()).isEqualTo(1);
+	}
+}